@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Decrypts through {@link StandInOpenPgpService} instead of OpenKeychain.
+ */
+public class OpenPgpDecryptorTest extends InstrumentationTestCase {
+
+    private static final long BIND_TIMEOUT = 5000;
+
+    // content description of a message, line breaks are missing
+    private static final String DESCRIPTION = "-----BEGIN PGP MESSAGE-----Version: GnuPG v2"
+            + "jA0ECQMCB9b4UDAT72L/0kYB5dy0+ckLyBjfwkgUzPmX+TeIEyDMJ8vKflngYT23"
+            + "3nRhIdA1XZMAGxvibsGRvLIBvNiBwn+kA9oO6h5JIvA00D1jA6lN"
+            + "=RdZK-----END PGP MESSAGE-----";
+
+    private OpenPgpDecryptor mDecryptor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Context context = getInstrumentation().getContext();
+        mDecryptor = new OpenPgpDecryptor(context, context.getPackageName());
+        mDecryptor.bind();
+        long deadline = SystemClock.uptimeMillis() + BIND_TIMEOUT;
+        while (!mDecryptor.isBound() && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(50);
+        }
+        assertTrue(mDecryptor.isBound());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDecryptor.unbind();
+        super.tearDown();
+    }
+
+    public void testDecryptReturnsServiceOutput() throws Exception {
+        byte[] armor = "armor".getBytes("US-ASCII");
+        byte[] plaintext = mDecryptor.decrypt(new ByteArrayInputStream(armor));
+        assertNotNull(plaintext);
+        assertEquals("armor", new String(plaintext, "US-ASCII"));
+    }
+
+    public void testBindingIsKeptForFollowingDecrypts() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(mDecryptor.decrypt(new ByteArrayInputStream(new byte[]{'a'})));
+            assertTrue(mDecryptor.isBound());
+        }
+    }
+
+    public void testReflowedArmorIsStreamedIntoService() throws Exception {
+        ArmorReflow armor = ArmorReflow.parse(DESCRIPTION, ArmorType.MESSAGE, 0);
+        assertEquals(ArmorValidator.Result.VALID, ArmorValidator.validate(armor));
+        byte[] received = mDecryptor.decrypt(armor.newInputStream());
+        assertNotNull(received);
+        assertEquals(armor.toString(), new String(received, "US-ASCII"));
+    }
+}
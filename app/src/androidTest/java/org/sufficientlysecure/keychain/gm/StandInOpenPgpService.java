@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+
+import org.openintents.openpgp.IOpenPgpService2;
+import org.openintents.openpgp.OpenPgpError;
+import org.openintents.openpgp.util.OpenPgpApi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Local stand-in for OpenKeychain's OpenPGP service, "decrypts" by returning its input as it is.
+ */
+public class StandInOpenPgpService extends Service {
+
+    // write ends of the output pipes handed out by createOutputPipe, by pipe id
+    private final HashMap<Integer, ParcelFileDescriptor> mOutputPipes = new HashMap<>();
+
+    private final IOpenPgpService2.Stub mBinder = new IOpenPgpService2.Stub() {
+        @Override
+        public ParcelFileDescriptor createOutputPipe(int pipeId) {
+            try {
+                ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+                synchronized (mOutputPipes) {
+                    mOutputPipes.put(pipeId, pipe[1]);
+                }
+                return pipe[0];
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public Intent execute(Intent data, ParcelFileDescriptor input, int pipeId) {
+            ParcelFileDescriptor output;
+            synchronized (mOutputPipes) {
+                output = mOutputPipes.remove(pipeId);
+            }
+            Intent result = new Intent();
+            InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(input);
+            OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            } catch (IOException e) {
+                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+                result.putExtra(OpenPgpApi.RESULT_ERROR,
+                        new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage()));
+            } finally {
+                try {
+                    in.close();
+                    out.close();
+                } catch (IOException e) {
+                    // result is already known
+                }
+            }
+            return result;
+        }
+    };
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Picks the accessibility notificationTimeout from the rate of delivered events.
+ * <p/>
+ * While events keep coming (e.g. while scrolling), the system should collect them for longer and
+ * deliver fewer of them. Once no event arrived for a whole window, the short timeout is restored,
+ * so the first change after a pause is delivered quickly. Each change costs an IPC, so the
+ * timeout only switches between two values. Must only be used on the handler's thread.
+ */
+public class AdaptiveTimeout {
+
+    public interface Listener {
+        void onTimeoutChanged(long timeout);
+    }
+
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final long mIdleTimeout;
+    private final long mBusyTimeout;
+    private final int mBusyEvents;
+    private final long mWindow;
+
+    private long mTimeout;
+    private long mWindowStart = -1;
+    private int mCount;
+
+    private final Runnable mIdle = new Runnable() {
+        @Override
+        public void run() {
+            setTimeout(mIdleTimeout);
+        }
+    };
+
+    /**
+     * @param busyEvents number of events within one window that switch to the busy timeout
+     */
+    public AdaptiveTimeout(Handler handler, Listener listener, long idleTimeout,
+                           long busyTimeout, int busyEvents, long window) {
+        mHandler = handler;
+        mListener = listener;
+        mIdleTimeout = idleTimeout;
+        mBusyTimeout = busyTimeout;
+        mBusyEvents = busyEvents;
+        mWindow = window;
+        mTimeout = idleTimeout;
+    }
+
+    public long getTimeout() {
+        return mTimeout;
+    }
+
+    /**
+     * Counts a delivered event.
+     */
+    public void onEvent() {
+        long now = SystemClock.uptimeMillis();
+        if (mWindowStart < 0 || now - mWindowStart > mWindow) {
+            mWindowStart = now;
+            mCount = 0;
+        }
+        mCount++;
+        if (mCount >= mBusyEvents) {
+            setTimeout(mBusyTimeout);
+        }
+        if (mTimeout == mBusyTimeout) {
+            // stays busy as long as events keep coming
+            mHandler.removeCallbacks(mIdle);
+            mHandler.postDelayed(mIdle, mWindow);
+        }
+    }
+
+    public void cancel() {
+        mHandler.removeCallbacks(mIdle);
+    }
+
+    private void setTimeout(long timeout) {
+        if (mTimeout == timeout) {
+            return;
+        }
+        mTimeout = timeout;
+        mListener.onTimeoutChanged(timeout);
+    }
+}
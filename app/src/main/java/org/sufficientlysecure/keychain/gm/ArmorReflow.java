@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Rebuilds a valid ASCII armor from the content description of a message node.
+ * <p/>
+ * Unfortunately, line breaks are missing from content descriptions. The armor is located once by
+ * {@link #parse(CharSequence, ArmorType, int)}, afterwards header, 64 column body, checksum and
+ * footer are written in a single linear pass without modifying intermediate strings, or produced
+ * while being read by {@link #newInputStream()}.
+ */
+public class ArmorReflow {
+
+    private static final int CHECKSUM_LENGTH = 5;
+    private static final int LINE_LENGTH = 64;
+    // characters behind the headers searched for the start of the data, covers the part of the
+    // last header value running into it
+    private static final int MAX_HEADER_TAIL = 128;
+    // positions behind the headers fully checked against the checksum
+    private static final int MAX_CHECKED_STARTS = 4;
+
+    private final ArmorType mType;
+    private final String mContent;
+    private final int mBodyStart;
+    private final int mBodyEnd;
+    // -1 if there is no checksum
+    private final int mChecksumStart;
+    private final boolean mTruncated;
+    // the data cannot be told apart from the last header value
+    private final boolean mBodyAmbiguous;
+
+    private ArmorReflow(ArmorType type, String content, int bodyStart, int bodyEnd,
+                        int checksumStart, boolean truncated, boolean bodyAmbiguous) {
+        mType = type;
+        mContent = content;
+        mBodyStart = bodyStart;
+        mBodyEnd = bodyEnd;
+        mChecksumStart = checksumStart;
+        mTruncated = truncated;
+        mBodyAmbiguous = bodyAmbiguous;
+    }
+
+    /**
+     * Locates the armored block of the given type inside the content description.
+     *
+     * @param offset index of the block's header, as found by {@link MessageDetector}
+     * @throws IOException if the content does not contain the start of such a block
+     */
+    public static ArmorReflow parse(CharSequence contentDescription, ArmorType type, int offset)
+            throws IOException {
+        if (contentDescription == null) {
+            throw new IOException("message content is gone");
+        }
+        String content = contentDescription.toString();
+
+        int begin = content.startsWith(type.getHeader(), offset)
+                ? offset : content.indexOf(type.getHeader());
+        if (begin == -1) {
+            throw new IOException(type.getHeader() + " not found");
+        }
+        int headerEnd = begin + type.getHeader().length();
+
+        // TODO: get charset from header?
+        int end = content.indexOf(type.getFooter(), headerEnd);
+        // if the footer is not inside the string, gmail has cut it
+        boolean truncated = end == -1;
+
+        int bodyEnd = truncated ? content.length() : end;
+        while (bodyEnd > headerEnd && isWhitespace(content.charAt(bodyEnd - 1))) {
+            bodyEnd--;
+        }
+        int checksumStart = -1;
+        if (!truncated && bodyEnd - CHECKSUM_LENGTH >= headerEnd
+                && content.charAt(bodyEnd - CHECKSUM_LENGTH) == '=') {
+            checksumStart = bodyEnd - CHECKSUM_LENGTH;
+            bodyEnd = checksumStart;
+        }
+
+        int dataStart = skipHeaders(content, headerEnd, bodyEnd);
+        int bodyStart = findBodyStart(content, type, headerEnd, dataStart, bodyEnd,
+                checksumStart);
+        boolean bodyAmbiguous = bodyStart == -1;
+        if (bodyAmbiguous) {
+            // reported as corrupted by the validator
+            bodyStart = dataStart;
+        }
+
+        return new ArmorReflow(type, content, bodyStart, bodyEnd, checksumStart, truncated,
+                bodyAmbiguous);
+    }
+
+    /**
+     * Skips the armor headers ("Key: value") between the header line and the base64 data.
+     * <p/>
+     * Base64 contains neither ':' nor any other header punctuation, so the data lies behind the
+     * last character that is neither base64 nor whitespace. As line breaks are missing, the run
+     * behind it may still start with the rest of the last header value, e.g. "GnuPG v2hQEMA...".
+     *
+     * @return start of that run
+     */
+    private static int skipHeaders(String content, int from, int to) {
+        int start = to;
+        while (start > from) {
+            char c = content.charAt(start - 1);
+            if (!isWhitespace(c) && !ArmorValidator.isBase64(c) && c != '=') {
+                break;
+            }
+            start--;
+        }
+        return start;
+    }
+
+    /**
+     * Finds the start of the data among the first {@value #MAX_HEADER_TAIL} characters behind
+     * the headers, by the first few octets of each position. With a checksum, the first
+     * {@value #MAX_CHECKED_STARTS} plausible positions are checked against it. Without one, the
+     * data must start right behind the header line or whitespace, as any other position may be
+     * inside the last header value.
+     *
+     * @return start of the data, -1 if it cannot be told apart from the header value
+     */
+    private static int findBodyStart(String content, ArmorType type, int headerEnd, int from,
+                                     int to, int checksumStart) {
+        int limit = Math.min(to, from + MAX_HEADER_TAIL);
+        int first = -1;
+        int checked = 0;
+        for (int i = from; i < limit; i++) {
+            if (!ArmorValidator.isPacketStart(content, i, to, type)) {
+                continue;
+            }
+            if (checksumStart == -1) {
+                if (i == headerEnd || isWhitespace(content.charAt(i - 1))) {
+                    return i;
+                }
+                continue;
+            }
+            if (first == -1) {
+                first = i;
+            }
+            if (checked < MAX_CHECKED_STARTS) {
+                checked++;
+                if (ArmorValidator.check(content, i, to, checksumStart)
+                        == ArmorValidator.Result.VALID) {
+                    return i;
+                }
+            }
+        }
+        // corrupted, or ambiguous without a checksum
+        return first;
+    }
+
+    public ArmorType getType() {
+        return mType;
+    }
+
+    /**
+     * @return true if the footer is missing because Gmail has clipped the message
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    String getContent() {
+        return mContent;
+    }
+
+    int getBodyStart() {
+        return mBodyStart;
+    }
+
+    /**
+     * @return true if the start of the data could not be told apart from the last header value
+     */
+    boolean isBodyAmbiguous() {
+        return mBodyAmbiguous;
+    }
+
+    int getBodyEnd() {
+        return mBodyEnd;
+    }
+
+    /**
+     * @return index of the '=' starting the checksum, -1 if there is no checksum
+     */
+    int getChecksumStart() {
+        return mChecksumStart;
+    }
+
+    /**
+     * @return upper bound of the number of characters written by {@link #writeTo(Appendable)}
+     */
+    public int getMaxLength() {
+        int bodyLength = mBodyEnd - mBodyStart;
+        return mType.getHeader().length() + 2
+                + bodyLength + bodyLength / LINE_LENGTH + 1
+                + CHECKSUM_LENGTH + 1
+                + mType.getFooter().length() + 1;
+    }
+
+    /**
+     * @throws IOException if the armor is truncated
+     */
+    public void writeTo(Appendable out) throws IOException {
+        checkComplete();
+        Cursor cursor = new Cursor();
+        int c;
+        while ((c = cursor.next()) != -1) {
+            out.append((char) c);
+        }
+    }
+
+    /**
+     * @return the re-flowed armor as ASCII, produced while it is read instead of being copied
+     * into a buffer first
+     * @throws IOException if the armor is truncated
+     */
+    public InputStream newInputStream() throws IOException {
+        checkComplete();
+        return new InputStream() {
+            private final Cursor mCursor = new Cursor();
+
+            @Override
+            public int read() {
+                int c = mCursor.next();
+                return c < 0x80 ? c : '?';
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                if (length == 0) {
+                    return 0;
+                }
+                int count = 0;
+                int c;
+                while (count < length && (c = read()) != -1) {
+                    buffer[offset + count++] = (byte) c;
+                }
+                return count > 0 ? count : -1;
+            }
+        };
+    }
+
+    private void checkComplete() throws IOException {
+        if (mTruncated) {
+            throw new IOException(mType.getFooter()
+                    + " not found, message has been cut by Gmail");
+        }
+    }
+
+    /**
+     * Produces the re-flowed armor one character at a time: header, body wrapped at
+     * {@value #LINE_LENGTH} columns, checksum and footer.
+     */
+    private class Cursor {
+        private boolean mInBody;
+        private boolean mDone;
+        // header before the body, checksum and footer after it
+        private String mText = mType.getHeader() + "\n\n";
+        private int mPosition;
+        private int mColumn;
+
+        /**
+         * @return the next character, -1 at the end
+         */
+        int next() {
+            while (true) {
+                if (mInBody) {
+                    while (mPosition < mBodyEnd && isWhitespace(mContent.charAt(mPosition))) {
+                        mPosition++;
+                    }
+                    if (mPosition < mBodyEnd) {
+                        if (mColumn == LINE_LENGTH) {
+                            mColumn = 0;
+                            return '\n';
+                        }
+                        mColumn++;
+                        return mContent.charAt(mPosition++);
+                    }
+                    mInBody = false;
+                    mDone = true;
+                    mText = getTrailer(mColumn > 0);
+                    mPosition = 0;
+                }
+                if (mPosition < mText.length()) {
+                    return mText.charAt(mPosition++);
+                }
+                if (mDone) {
+                    return -1;
+                }
+                mInBody = true;
+                mPosition = mBodyStart;
+            }
+        }
+    }
+
+    private String getTrailer(boolean lineOpen) {
+        StringBuilder trailer = new StringBuilder(CHECKSUM_LENGTH + mType.getFooter().length() + 3);
+        if (lineOpen) {
+            trailer.append('\n');
+        }
+        if (mChecksumStart != -1) {
+            trailer.append(mContent, mChecksumStart, mChecksumStart + CHECKSUM_LENGTH).append('\n');
+        }
+        return trailer.append(mType.getFooter()).append('\n').toString();
+    }
+
+    @Override
+    public String toString() {
+        if (mTruncated) {
+            // cannot be re-flowed
+            return mContent;
+        }
+        StringBuilder builder = new StringBuilder(getMaxLength());
+        try {
+            writeTo(builder);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+            throw new AssertionError(e);
+        }
+        return builder.toString();
+    }
+
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+}
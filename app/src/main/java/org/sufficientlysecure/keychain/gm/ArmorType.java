@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import org.sufficientlysecure.keychain.intents.OpenKeychainIntents;
+
+/**
+ * Armored blocks recognized by {@link MessageDetector}, with what OpenKeychain should do with
+ * them.
+ */
+public enum ArmorType {
+
+    MESSAGE("MESSAGE",
+            R.string.decrypt_with_openkeychain, OpenKeychainIntents.DECRYPT_DATA),
+    PUBLIC_KEY_BLOCK("PUBLIC KEY BLOCK",
+            R.string.import_with_openkeychain, OpenKeychainIntents.IMPORT_KEY),
+    // detached, OpenKeychain cannot verify it without the signed data
+    SIGNATURE("SIGNATURE",
+            R.string.detached_signature, null);
+
+    private final String mHeader;
+    private final String mFooter;
+    private final int mActionLabel;
+    private final String mIntentAction;
+
+    ArmorType(String label, int actionLabel, String intentAction) {
+        mHeader = "-----BEGIN PGP " + label + "-----";
+        mFooter = "-----END PGP " + label + "-----";
+        mActionLabel = actionLabel;
+        mIntentAction = intentAction;
+    }
+
+    public String getHeader() {
+        return mHeader;
+    }
+
+    public String getFooter() {
+        return mFooter;
+    }
+
+    /**
+     * @return label of the overlay's button, describes the block if there is no action
+     */
+    public int getActionLabel() {
+        return mActionLabel;
+    }
+
+    /**
+     * @return null if OpenKeychain cannot do anything with the block alone
+     */
+    public String getIntentAction() {
+        return mIntentAction;
+    }
+
+    public boolean hasAction() {
+        return mIntentAction != null;
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+/**
+ * Checks a located armor before anything is written or sent to OpenKeychain: END marker,
+ * base64 alphabet and length, the CRC-24 armor checksum (RFC 4880, section 6.1) and that the
+ * data consists of whole packets (RFC 4880, section 4.2).
+ * <p/>
+ * The body is decoded on the fly in a single pass, without allocating.
+ */
+public class ArmorValidator {
+
+    public enum Result {
+        VALID,
+        // END marker missing, Gmail has clipped the message
+        TRUNCATED,
+        // invalid base64 or checksum mismatch
+        CORRUPTED
+    }
+
+    // characters looked at to tell whether a position starts a packet
+    private static final int MAX_PROBE_CHARS = 16;
+    // tag, up to five length octets and the first body octet
+    private static final int PROBE_OCTETS = 7;
+
+    private static final int CRC24_INIT = 0xB704CE;
+    private static final int CRC24_POLY = 0x1864CFB;
+
+    private static final int[] CRC24_TABLE = new int[256];
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 16;
+            for (int bit = 0; bit < 8; bit++) {
+                crc <<= 1;
+                if ((crc & 0x1000000) != 0) {
+                    crc ^= CRC24_POLY;
+                }
+            }
+            CRC24_TABLE[i] = crc & 0xFFFFFF;
+        }
+
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < BASE64_VALUES.length; i++) {
+            BASE64_VALUES[i] = -1;
+        }
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    public static Result validate(ArmorReflow armor) {
+        if (armor.isTruncated()) {
+            return Result.TRUNCATED;
+        }
+        if (armor.isBodyAmbiguous()) {
+            return Result.CORRUPTED;
+        }
+        return check(armor.getContent(), armor.getBodyStart(), armor.getBodyEnd(),
+                armor.getChecksumStart());
+    }
+
+    /**
+     * Checks the base64 data between start and end.
+     *
+     * @param checksumStart index of the '=' starting the checksum, -1 if there is none
+     */
+    static Result check(String content, int start, int end, int checksumStart) {
+        PacketWalker packets = new PacketWalker();
+        int crc = CRC24_INIT;
+        int bits = 0;
+        int groupLength = 0;
+        int dataLength = 0;
+        int padding = 0;
+        for (int i = start; i < end; i++) {
+            char c = content.charAt(i);
+            if (ArmorReflow.isWhitespace(c)) {
+                continue;
+            }
+            if (c == '=') {
+                padding++;
+                continue;
+            }
+            int value = decode(c);
+            if (value == -1 || padding > 0) {
+                // not base64 or data after padding
+                return Result.CORRUPTED;
+            }
+
+            bits = (bits << 6) | value;
+            dataLength++;
+            if (++groupLength == 4) {
+                crc = updateCrc(crc, bits >> 16);
+                crc = updateCrc(crc, bits >> 8);
+                crc = updateCrc(crc, bits);
+                if (!packets.next(bits >> 16) || !packets.next(bits >> 8)
+                        || !packets.next(bits)) {
+                    return Result.CORRUPTED;
+                }
+                bits = 0;
+                groupLength = 0;
+            }
+        }
+
+        // the last group is completed by padding
+        if (dataLength == 0 || padding > 2 || (groupLength + padding) % 4 != 0
+                || (groupLength == 0 && padding != 0)) {
+            return Result.CORRUPTED;
+        }
+        if (groupLength == 3) {
+            crc = updateCrc(crc, bits >> 10);
+            crc = updateCrc(crc, bits >> 2);
+            if (!packets.next(bits >> 10) || !packets.next(bits >> 2)) {
+                return Result.CORRUPTED;
+            }
+        } else if (groupLength == 2) {
+            crc = updateCrc(crc, bits >> 4);
+            if (!packets.next(bits >> 4)) {
+                return Result.CORRUPTED;
+            }
+        }
+        if (!packets.isComplete()) {
+            return Result.CORRUPTED;
+        }
+
+        if (checksumStart == -1) {
+            // the checksum is optional
+            return Result.VALID;
+        }
+        int checksum = 0;
+        for (int i = checksumStart + 1; i < checksumStart + 5; i++) {
+            int value = decode(content.charAt(i));
+            if (value == -1) {
+                return Result.CORRUPTED;
+            }
+            checksum = (checksum << 6) | value;
+        }
+
+        return checksum == (crc & 0xFFFFFF) ? Result.VALID : Result.CORRUPTED;
+    }
+
+    /**
+     * @return CRC-24 of data as used by the armor checksum
+     */
+    static int crc24(byte[] data) {
+        int crc = CRC24_INIT;
+        for (byte b : data) {
+            crc = updateCrc(crc, b);
+        }
+        return crc;
+    }
+
+    private static int updateCrc(int crc, int b) {
+        return ((crc << 8) ^ CRC24_TABLE[((crc >> 16) ^ b) & 0xFF]) & 0xFFFFFF;
+    }
+
+    static boolean isBase64(char c) {
+        return decode(c) != -1;
+    }
+
+    /**
+     * Decodes the first octets at start and checks that they are the header of a packet that may
+     * begin a block of this type, followed by a known version or format octet (RFC 4880,
+     * sections 4.2 and 5). Only looks at a few characters up to the next whitespace.
+     */
+    static boolean isPacketStart(String content, int start, int end, ArmorType type) {
+        long octets = 0;
+        int octetCount = 0;
+        int bits = 0;
+        int bitCount = 0;
+        int limit = Math.min(end, start + MAX_PROBE_CHARS);
+        for (int i = start; i < limit && octetCount < PROBE_OCTETS; i++) {
+            // data lines are never broken that early, words of a header value are
+            int value = decode(content.charAt(i));
+            if (value == -1) {
+                break;
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                octets = (octets << 8) | ((bits >> bitCount) & 0xFF);
+                octetCount++;
+            }
+        }
+        if (octetCount < 3) {
+            return false;
+        }
+
+        int tagOctet = octet(octets, octetCount, 0);
+        if ((tagOctet & 0x80) == 0) {
+            return false;
+        }
+        int tag;
+        int lengthOctets;
+        if ((tagOctet & 0x40) != 0) {
+            tag = tagOctet & 0x3F;
+            int length = octet(octets, octetCount, 1);
+            // one octet lengths and partial lengths are both a single octet
+            lengthOctets = length >= 192 && length < 224 ? 2 : length == 255 ? 5 : 1;
+        } else {
+            tag = (tagOctet >> 2) & 0x0F;
+            int lengthType = tagOctet & 0x03;
+            lengthOctets = lengthType == 3 ? 0 : 1 << lengthType;
+        }
+        int bodyIndex = 1 + lengthOctets;
+        return bodyIndex < octetCount
+                && isFirstPacket(type, tag, octet(octets, octetCount, bodyIndex));
+    }
+
+    private static int octet(long octets, int octetCount, int index) {
+        return (int) (octets >> (8 * (octetCount - 1 - index))) & 0xFF;
+    }
+
+    /**
+     * @param octet first octet of the packet body
+     */
+    private static boolean isFirstPacket(ArmorType type, int tag, int octet) {
+        switch (type) {
+            case PUBLIC_KEY_BLOCK:
+                // public key, version
+                return tag == 6 && octet >= 3 && octet <= 6;
+            case SIGNATURE:
+                // signature, version
+                return tag == 2 && octet >= 3 && octet <= 6;
+            default:
+                switch (tag) {
+                    // public-key encrypted session key and one-pass signature, version
+                    case 1:
+                    case 4:
+                        return octet == 3 || octet == 6;
+                    // signature, version
+                    case 2:
+                        return octet >= 3 && octet <= 6;
+                    // symmetric-key encrypted session key, version
+                    case 3:
+                        return octet >= 4 && octet <= 6;
+                    // compressed data, algorithm
+                    case 8:
+                        return octet <= 3;
+                    // marker, "PGP"
+                    case 10:
+                        return octet == 'P';
+                    // literal data, format
+                    case 11:
+                        return octet == 'b' || octet == 't' || octet == 'u' || octet == 'l'
+                                || octet == '1' || octet == 'm';
+                    // symmetrically encrypted integrity protected data, version
+                    case 18:
+                        return octet == 1 || octet == 2;
+                    // AEAD encrypted data, version
+                    case 20:
+                        return octet == 1;
+                    default:
+                        return false;
+                }
+        }
+    }
+
+    private static int decode(char c) {
+        return c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+    }
+
+    /**
+     * Follows packet headers through the decoded bytes, old and new format, including partial
+     * body lengths.
+     */
+    private static class PacketWalker {
+        private static final int TAG = 0;
+        private static final int LENGTH = 1;
+        private static final int BODY = 2;
+        // old format packet of indeterminate length, extends to the end of the data
+        private static final int REST = 3;
+
+        private int mState = TAG;
+        private int mPackets;
+        // remaining length octets, -1 if the first octet of a new format length is expected
+        private int mLengthOctets;
+        private boolean mTwoOctetLength;
+        private boolean mPartial;
+        // length being read, then remaining body octets
+        private long mLength;
+
+        /**
+         * @return false if b cannot continue a sequence of packets
+         */
+        boolean next(int b) {
+            b &= 0xFF;
+            switch (mState) {
+                case TAG: {
+                    if ((b & 0x80) == 0) {
+                        return false;
+                    }
+                    mPackets++;
+                    if ((b & 0x40) != 0) {
+                        startLength(-1);
+                    } else if ((b & 0x03) == 3) {
+                        mState = REST;
+                    } else {
+                        startLength(1 << (b & 0x03));
+                    }
+                    return true;
+                }
+                case LENGTH: {
+                    if (mLengthOctets == -1) {
+                        if (b < 192) {
+                            startBody(b, false);
+                        } else if (b < 224) {
+                            mLength = b - 192;
+                            mLengthOctets = 1;
+                            mTwoOctetLength = true;
+                        } else if (b < 255) {
+                            startBody(1 << (b & 0x1F), true);
+                        } else {
+                            mLengthOctets = 4;
+                        }
+                        return true;
+                    }
+                    mLength = (mLength << 8) | b;
+                    if (--mLengthOctets == 0) {
+                        startBody(mTwoOctetLength ? mLength + 192 : mLength, false);
+                    }
+                    return true;
+                }
+                case BODY: {
+                    if (--mLength == 0) {
+                        endBody();
+                    }
+                    return true;
+                }
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * @return true if the data ended at a packet boundary
+         */
+        boolean isComplete() {
+            return mState == REST || (mState == TAG && mPackets > 0);
+        }
+
+        private void startLength(int octets) {
+            mState = LENGTH;
+            mLengthOctets = octets;
+            mTwoOctetLength = false;
+            mLength = 0;
+        }
+
+        private void startBody(long length, boolean partial) {
+            mState = BODY;
+            mLength = length;
+            mPartial = partial;
+            if (length == 0) {
+                endBody();
+            }
+        }
+
+        private void endBody() {
+            if (mPartial) {
+                // a partial body is followed by the length of the next part
+                startLength(-1);
+            } else {
+                mState = TAG;
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Buffered Writer encoding characters as US-ASCII directly into an OutputStream, using a fixed
+ * size buffer only. ASCII armor never contains other characters, anything outside of ASCII is
+ * replaced by '?'.
+ */
+public class AsciiWriter extends Writer {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mCount;
+    private long mWritten;
+
+    public AsciiWriter(OutputStream out) {
+        mOut = out;
+    }
+
+    /**
+     * @return number of bytes written so far, including buffered ones
+     */
+    public long getWrittenBytes() {
+        return mWritten + mCount;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (mCount == BUFFER_SIZE) {
+            flushBuffer();
+        }
+        mBuffer[mCount++] = c < 0x80 ? (byte) c : (byte) '?';
+    }
+
+    @Override
+    public void write(char[] buf, int offset, int count) throws IOException {
+        for (int i = offset; i < offset + count; i++) {
+            write(buf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int offset, int count) throws IOException {
+        for (int i = offset; i < offset + count; i++) {
+            write(str.charAt(i));
+        }
+    }
+
+    @Override
+    public Writer append(CharSequence csq, int start, int end) throws IOException {
+        // avoid subSequence() copies of Writer's default implementation
+        for (int i = start; i < end; i++) {
+            write(csq.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            mOut.write(mBuffer, 0, mCount);
+            mWritten += mCount;
+            mCount = 0;
+        }
+    }
+}
@@ -11,5 +11,34 @@ public class Constants {
 
     public static final String TEMPSTORAGE_AUTHORITY = BuildConfig.APPLICATION_ID + ".tempstorage";
     public static final int TEMPFILE_TTL = 24 * 60 * 60 * 1000; // 1 day
+    public static final long TEMPFILE_SWEEP_INTERVAL = 60 * 60 * 1000; // 1 hour
+    public static final long TEMPFILE_MAX_BYTES = 32 * 1024 * 1024; // 32 MiB
+    // hand armor to OpenKeychain through an in-memory pipe instead of a temp file
+    public static final boolean TEMPSTORAGE_USE_PIPES = false;
+    public static final int TEMPPIPE_TTL = 5 * 60 * 1000; // 5 minutes
+    // encrypt temp files with a key kept in memory, files are then only accessible as streams
+    public static final boolean TEMPSTORAGE_ENCRYPT = false;
+    // share one file between entries with the same content, found by a hash computed on write
+    public static final boolean TEMPSTORAGE_DEDUPLICATE = true;
+
+    // decrypt messages through OpenKeychain's OpenPGP service and show them in the overlay,
+    // OpenKeychain's activity is only started if it needs user interaction
+    public static final boolean DECRYPT_IN_OVERLAY = true;
+    // plaintext of decrypted messages kept in memory, cleared on screen off and when unused
+    public static final long PLAINTEXT_CACHE_MAX_BYTES = 1024 * 1024; // 1 MiB
+    public static final long PLAINTEXT_CACHE_TIMEOUT = 5 * 60 * 1000; // 5 minutes
+    // content of detected messages prepared ahead of a click, larger messages wait for the click
+    public static final int SPECULATIVE_MAX_BYTES = 512 * 1024;
+
+    // coalescing of TYPE_WINDOW_CONTENT_CHANGED bursts into a single scan
+    public static final long SCAN_QUIET_WINDOW = 150; // ms
+    public static final long SCAN_MAX_LATENCY = 500; // ms
+
+    // notificationTimeout of the accessibility service, longer while events keep coming
+    public static final long NOTIFICATION_TIMEOUT_IDLE = 50; // ms
+    public static final long NOTIFICATION_TIMEOUT_BUSY = 300; // ms
+    // events per window switching to the busy timeout, a window without events switches back
+    public static final int NOTIFICATION_BUSY_EVENTS = 5;
+    public static final long NOTIFICATION_RATE_WINDOW = 1000; // ms
 
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * A message node found by {@link PgpNodeScanner}, together with the outermost WebView containing
+ * it. The WebView is used to find out which detections are affected by an incremental scan.
+ * <p/>
+ * Both nodes are owned by this object and released by {@link #recycle()}.
+ */
+public class DetectedMessage {
+
+    private final AccessibilityNodeInfo mNode;
+    private final AccessibilityNodeInfo mWebView;
+    private final DetectionCache.Key mKey;
+    private final MessageDetector.Detection mDetection;
+    private final Rect mBounds = new Rect();
+
+    public DetectedMessage(AccessibilityNodeInfo node, AccessibilityNodeInfo webView,
+                           DetectionCache.Key key, MessageDetector.Detection detection) {
+        mNode = node;
+        mWebView = webView;
+        mKey = key;
+        mDetection = detection;
+        node.getBoundsInScreen(mBounds);
+    }
+
+    public AccessibilityNodeInfo getNode() {
+        return mNode;
+    }
+
+    public AccessibilityNodeInfo getWebView() {
+        return mWebView;
+    }
+
+    public DetectionCache.Key getKey() {
+        return mKey;
+    }
+
+    public MessageDetector.Detection getDetection() {
+        return mDetection;
+    }
+
+    public Rect getBounds() {
+        return mBounds;
+    }
+
+    public void recycle() {
+        mNode.recycle();
+        mWebView.recycle();
+    }
+}
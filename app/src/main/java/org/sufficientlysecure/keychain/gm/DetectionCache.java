@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.graphics.Rect;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small LRU cache remembering which armored block a message node contains and where its overlay
+ * has been drawn last, so unchanged messages are neither matched nor overlaid again on every scan.
+ * <p/>
+ * Accessed from the scan thread and the main thread.
+ */
+public class DetectionCache {
+
+    private static final int MAX_ENTRIES = 128;
+
+    // number of characters of the content description that are hashed
+    private static final int CONTENT_PREFIX_LENGTH = 256;
+
+    private final LinkedHashMap<Key, Result> mEntries =
+            new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /**
+     * @return true if the content of this node has already been matched
+     */
+    public synchronized boolean isMatched(Key key) {
+        return mEntries.containsKey(key);
+    }
+
+    /**
+     * @return null if the node has not been matched yet or does not contain an armored block
+     */
+    @Nullable
+    public synchronized MessageDetector.Detection getDetection(Key key) {
+        Result result = mEntries.get(key);
+        return result != null ? result.mDetection : null;
+    }
+
+    /**
+     * @param detection null if the node does not contain an armored block
+     */
+    public synchronized void putResult(Key key, @Nullable MessageDetector.Detection detection) {
+        Result result = mEntries.get(key);
+        if (result == null) {
+            result = new Result();
+            mEntries.put(key, result);
+        }
+        result.mDetection = detection;
+    }
+
+    /**
+     * @return bounds of the last overlay drawn for this node, null if none has been drawn
+     */
+    @Nullable
+    public synchronized Rect getOverlayBounds(Key key) {
+        Result result = mEntries.get(key);
+        return result != null ? result.mOverlayBounds : null;
+    }
+
+    public synchronized void putOverlayBounds(Key key, Rect bounds) {
+        Result result = mEntries.get(key);
+        if (result != null) {
+            result.mOverlayBounds = new Rect(bounds);
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    private static class Result {
+        MessageDetector.Detection mDetection;
+        Rect mOverlayBounds;
+    }
+
+    /**
+     * Identifies a message node by its window, its node id and its content.
+     */
+    public static class Key {
+        private final int mWindowId;
+        // AccessibilityNodeInfo.hashCode() is derived from the source node id
+        private final int mNodeId;
+        private final int mContentLength;
+        private final int mContentHash;
+
+        private Key(int windowId, int nodeId, int contentLength, int contentHash) {
+            mWindowId = windowId;
+            mNodeId = nodeId;
+            mContentLength = contentLength;
+            mContentHash = contentHash;
+        }
+
+        public static Key create(AccessibilityNodeInfo node, CharSequence contentDescription) {
+            int prefixLength = Math.min(contentDescription.length(), CONTENT_PREFIX_LENGTH);
+            int hash = 0;
+            for (int i = 0; i < prefixLength; i++) {
+                hash = 31 * hash + contentDescription.charAt(i);
+            }
+            // getWindowId() is public API since Lollipop only, Gmail shows messages in one
+            // window anyway
+            int windowId = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    ? node.getWindowId() : 0;
+            return new Key(windowId, node.hashCode(), contentDescription.length(), hash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mWindowId == key.mWindowId
+                    && mNodeId == key.mNodeId
+                    && mContentLength == key.mContentLength
+                    && mContentHash == key.mContentHash;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mWindowId;
+            result = 31 * result + mNodeId;
+            result = 31 * result + mContentLength;
+            result = 31 * result + mContentHash;
+            return result;
+        }
+    }
+}
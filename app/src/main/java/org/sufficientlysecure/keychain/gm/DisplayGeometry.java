@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Rect;
+import android.util.TypedValue;
+import android.view.WindowManager;
+
+/**
+ * Display measures needed to place overlays. They are resolved once and kept until
+ * {@link #invalidate()} is called on a configuration change (rotation, density, window size).
+ * Must only be used on the main thread.
+ */
+public class DisplayGeometry {
+
+    private final Context mContext;
+    private final WindowManager mWindowManager;
+
+    private boolean mValid;
+    private int mToolbarHeight;
+    private int mStatusBarHeight;
+    private int mDisplayHeight;
+
+    public DisplayGeometry(Context context, WindowManager windowManager) {
+        mContext = context;
+        mWindowManager = windowManager;
+    }
+
+    public void invalidate() {
+        mValid = false;
+    }
+
+    public int getToolbarHeight() {
+        ensureValid();
+        return mToolbarHeight;
+    }
+
+    public int getStatusBarHeight() {
+        ensureValid();
+        return mStatusBarHeight;
+    }
+
+    public int getDisplayHeight() {
+        ensureValid();
+        return mDisplayHeight;
+    }
+
+    private void ensureValid() {
+        if (mValid) {
+            return;
+        }
+        Resources resources = mContext.getResources();
+
+        TypedValue tv = new TypedValue();
+        mContext.getTheme().resolveAttribute(android.R.attr.actionBarSize, tv, true);
+        mToolbarHeight = resources.getDimensionPixelSize(tv.resourceId);
+
+        mStatusBarHeight = 0;
+        int resourceId = resources.getIdentifier("status_bar_height", "dimen", "android");
+        if (resourceId > 0) {
+            mStatusBarHeight = resources.getDimensionPixelSize(resourceId);
+        }
+
+        Rect displayRect = new Rect();
+        mWindowManager.getDefaultDisplay().getRectSize(displayRect);
+        mDisplayHeight = displayRect.height();
+
+        mValid = true;
+    }
+}
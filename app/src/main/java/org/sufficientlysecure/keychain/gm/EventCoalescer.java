@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Collapses bursts of {@link #schedule()} calls into a single run of a task on the given Handler.
+ * <p/>
+ * The task runs once no further call arrived for the quiet window, but never later than the max
+ * latency after the first call of a burst, so a continuous stream of events (e.g. scrolling)
+ * still gets processed regularly.
+ */
+public class EventCoalescer {
+
+    private final Handler mHandler;
+    private final Runnable mTask;
+    private final long mQuietWindow;
+    private final long mMaxLatency;
+
+    private long mBurstStart = -1;
+
+    private final Runnable mRunner = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (EventCoalescer.this) {
+                mBurstStart = -1;
+            }
+            mTask.run();
+        }
+    };
+
+    public EventCoalescer(Handler handler, Runnable task, long quietWindow, long maxLatency) {
+        mHandler = handler;
+        mTask = task;
+        mQuietWindow = quietWindow;
+        mMaxLatency = maxLatency;
+    }
+
+    public synchronized void schedule() {
+        long now = SystemClock.uptimeMillis();
+        if (mBurstStart < 0) {
+            mBurstStart = now;
+        }
+
+        long runAt = Math.min(now + mQuietWindow, mBurstStart + mMaxLatency);
+        mHandler.removeCallbacks(mRunner);
+        mHandler.postAtTime(mRunner, runAt);
+    }
+
+    public synchronized void cancel() {
+        mHandler.removeCallbacks(mRunner);
+        mBurstStart = -1;
+    }
+}
@@ -18,47 +18,110 @@
 package org.sufficientlysecure.keychain.gm;
 
 import android.accessibilityservice.AccessibilityService;
-import android.annotation.SuppressLint;
+import android.accessibilityservice.AccessibilityServiceInfo;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.PixelFormat;
-import android.graphics.Point;
-import android.graphics.Rect;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.support.v4.view.ViewCompat;
-import android.text.TextUtils;
+import android.support.annotation.WorkerThread;
 import android.util.Log;
-import android.util.TypedValue;
-import android.view.ContextThemeWrapper;
-import android.view.Display;
-import android.view.Gravity;
-import android.view.LayoutInflater;
-import android.view.View;
 import android.view.WindowManager;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
-import android.widget.Button;
-import android.widget.FrameLayout;
-import android.widget.ImageButton;
-
-import org.sufficientlysecure.keychain.intents.OpenKeychainIntents;
+import android.widget.Toast;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
-public class GmAccessibilityService extends AccessibilityService {
+public class GmAccessibilityService extends AccessibilityService
+        implements OverlayManager.Listener {
 
-    private static final String WEB_VIEW_CLASS_NAME = "android.webkit.WebView";
-    private static final String VIEW_CLASS_NAME = "android.view.View";
+    // more changed nodes than this within one burst are handled by a full scan
+    private static final int MAX_PENDING_SOURCES = 32;
 
-    private static final String BEGIN_PGP_MESSAGE = "-----BEGIN PGP MESSAGE-----";
-    private static final String END_PGP_MESSAGE = "-----END PGP MESSAGE-----";
-    private static final int CHECKSUM_LENGTH = 5;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     private WindowManager mWindowManager;
-    private FrameLayout mOverlay;
+    private DisplayGeometry mDisplayGeometry;
+    private OverlayManager mOverlayManager;
+
+    private HandlerThread mScanThread;
+    private Handler mMainHandler;
+    private EventCoalescer mScanCoalescer;
+    private AdaptiveTimeout mNotificationTimeout;
+    // single thread, so temp files are written in click order
+    private ExecutorService mIoExecutor;
+    private OpenPgpDecryptor mDecryptor;
+    private PlaintextCache mPlaintextCache;
+    private final BroadcastReceiver mScreenOffReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // nobody is reading anymore
+            mPlaintextCache.clear();
+            mOverlayManager.clearPlaintext();
+        }
+    };
+    private final DetectionCache mDetectionCache = new DetectionCache();
+    private final PgpNodeScanner mScanner = new PgpNodeScanner(mDetectionCache,
+            MessageDetector.createDefault());
+
+    // changed nodes collected for the next scan, guarded by mPendingSources
+    private final ArrayList<AccessibilityNodeInfo> mPendingSources = new ArrayList<>();
+    private boolean mPendingFullScan;
+
+    // current detections, only accessed on the main thread
+    private final ArrayList<DetectedMessage> mDetected = new ArrayList<>();
+
+    // armor prepared ahead of a click, by message, only accessed on the main thread
+    private final HashMap<DetectionCache.Key, Speculation> mSpeculations = new HashMap<>();
+    // content length of all running or unused speculations
+    private int mSpeculativeBytes;
+
+    /**
+     * Armor of a detected message, validated and written into a temporary entry on the I/O
+     * thread before the user has clicked.
+     */
+    private static class Speculation {
+        final int mBytes;
+        Future<?> mFuture;
+        // handed to a click, must not be cancelled anymore
+        boolean mConsumed;
+
+        // set on the I/O thread, guarded by this
+        ArmorReflow mArmor;
+        ArmorValidator.Result mValidation;
+        Uri mUri;
+        boolean mDone;
+        boolean mCancelled;
+
+        Speculation(int bytes) {
+            mBytes = bytes;
+        }
+    }
 
     /**
      * {@inheritDoc}
@@ -67,7 +130,73 @@ public class GmAccessibilityService extends AccessibilityService {
     public void onServiceConnected() {
         if (mWindowManager == null) {
             mWindowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
+            mDisplayGeometry = new DisplayGeometry(this, mWindowManager);
+            mOverlayManager = new OverlayManager(this, mWindowManager, mDisplayGeometry, this);
+        }
+        if (mScanThread == null) {
+            mMainHandler = new Handler(Looper.getMainLooper());
+
+            // node traversal does blocking IPC into Gmail's process, keep it off the UI thread
+            mScanThread = new HandlerThread("GmScanThread", Process.THREAD_PRIORITY_BACKGROUND);
+            mScanThread.start();
+            Handler scanHandler = new Handler(mScanThread.getLooper());
+            mScanCoalescer = new EventCoalescer(scanHandler, new Runnable() {
+                @Override
+                public void run() {
+                    scan();
+                }
+            }, Constants.SCAN_QUIET_WINDOW, Constants.SCAN_MAX_LATENCY);
+            mNotificationTimeout = new AdaptiveTimeout(mMainHandler,
+                    new AdaptiveTimeout.Listener() {
+                        @Override
+                        public void onTimeoutChanged(long timeout) {
+                            Log.d(Constants.TAG, "notificationTimeout " + timeout);
+                            updateServiceInfo();
+                        }
+                    }, Constants.NOTIFICATION_TIMEOUT_IDLE, Constants.NOTIFICATION_TIMEOUT_BUSY,
+                    Constants.NOTIFICATION_BUSY_EVENTS, Constants.NOTIFICATION_RATE_WINDOW);
+            updateServiceInfo();
+
+            // temp file creation and writes are disk I/O, keep them off the UI thread
+            mIoExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "GmIoThread");
+                }
+            });
         }
+        if (Constants.DECRYPT_IN_OVERLAY && mDecryptor == null) {
+            // bound ahead of the first click and kept, binding takes longer than decrypting
+            mDecryptor = new OpenPgpDecryptor(this);
+            mDecryptor.bind();
+            mPlaintextCache = new PlaintextCache(mMainHandler, Constants.PLAINTEXT_CACHE_MAX_BYTES,
+                    Constants.PLAINTEXT_CACHE_TIMEOUT);
+            registerReceiver(mScreenOffReceiver, new IntentFilter(Intent.ACTION_SCREEN_OFF));
+        }
+    }
+
+    /**
+     * Subscribes to content changes only, with view ids for filtering and the current
+     * notificationTimeout. Package names and window content retrieval stay as declared in
+     * service_config.xml.
+     */
+    private void updateServiceInfo() {
+        AccessibilityServiceInfo info = getServiceInfo();
+        if (info == null) {
+            return;
+        }
+        info.eventTypes = AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED;
+        info.feedbackType = AccessibilityServiceInfo.FEEDBACK_GENERIC;
+        info.flags = AccessibilityServiceInfo.DEFAULT
+                | AccessibilityServiceInfo.FLAG_REPORT_VIEW_IDS;
+        info.notificationTimeout = mNotificationTimeout.getTimeout();
+        setServiceInfo(info);
     }
 
     @Override
@@ -77,212 +206,683 @@ public class GmAccessibilityService extends AccessibilityService {
             return;
         }
         Log.d(Constants.TAG, "TYPE_WINDOW_CONTENT_CHANGED");
+        mNotificationTimeout.onEvent();
 
         // This AccessibilityNodeInfo represents the view that fired the
-        // AccessibilityEvent. The following code will use it to traverse the
-        // view hierarchy, using this node as a starting point.
+        // AccessibilityEvent. Only the WebView subtree around it is scanned again.
         //
         // NOTE: Every method that returns an AccessibilityNodeInfo may return null,
         // because the explored window is in another process and the
         // corresponding View might be gone by the time your request reaches the
         // view hierarchy.
-//        AccessibilityNodeInfo source = event.getSource();
-
-        // TODO: start with "com.google.android.gm:id/conversation" ?
-        AccessibilityNodeInfo source = getRootInActiveWindow();
-        if (source == null) {
+        AccessibilityNodeInfo source = event.getSource();
+        if (source != null && PgpNodeScanner.isPruned(source)) {
+            // e.g. toolbar updates, cannot change any message
+            source.recycle();
             return;
         }
-        closeOverlay();
-
-        ArrayList<AccessibilityNodeInfo> pgpNodes = new ArrayList<>();
-        findPgpNodeInfo(source, pgpNodes);
-        for (final AccessibilityNodeInfo node : pgpNodes) {
-            Log.d(Constants.TAG, "node=" + node);
-
-            drawOverlay(node, new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    decryptWithOpenKeychain(node);
+        synchronized (mPendingSources) {
+            if (source == null || mPendingFullScan
+                    || mPendingSources.size() >= MAX_PENDING_SOURCES) {
+                mPendingFullScan = true;
+                recycleAll(mPendingSources);
+                if (source != null) {
+                    source.recycle();
                 }
-            });
+            } else if (mPendingSources.contains(source)) {
+                source.recycle();
+            } else {
+                mPendingSources.add(source);
+            }
         }
+
+        // bursts of events (e.g. while scrolling) are collapsed into a single scan
+        mScanCoalescer.schedule();
     }
 
-    private void decryptWithOpenKeychain(AccessibilityNodeInfo node) {
-        closeOverlay();
+    /**
+     * Runs on the scan thread, overlay changes are posted back to the main looper.
+     */
+    private void scan() {
+        ArrayList<AccessibilityNodeInfo> sources;
+        boolean fullScan;
+        synchronized (mPendingSources) {
+            sources = new ArrayList<>(mPendingSources);
+            mPendingSources.clear();
+            fullScan = mPendingFullScan;
+            mPendingFullScan = false;
+        }
 
-        try {
-            Uri dateUri = readToTempFile(fixContentDescription(node));
+        final ArrayList<AccessibilityNodeInfo> webViewRoots = new ArrayList<>();
+        for (AccessibilityNodeInfo source : sources) {
+            if (!fullScan) {
+                fullScan = !collectWebViewRoot(source, webViewRoots);
+            }
+            source.recycle();
+        }
 
-            Intent i = new Intent(OpenKeychainIntents.DECRYPT_DATA);
-            i.setPackage(Constants.OPEN_KEYCHAIN_PACKAGE_NAME);
-            i.setData(dateUri);
-            i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
-            startActivity(i);
-        } catch (IOException e) {
-            Log.e(Constants.TAG, "read to temp failed!", e);
+        final ArrayList<DetectedMessage> pgpNodes = new ArrayList<>();
+        if (fullScan) {
+            recycleAll(webViewRoots);
+
+            AccessibilityNodeInfo root = getRootInActiveWindow();
+            if (root == null) {
+                return;
+            }
+            try {
+                mScanner.scan(root, pgpNodes);
+            } finally {
+                root.recycle();
+            }
+        } else {
+            if (webViewRoots.isEmpty()) {
+                return;
+            }
+            for (AccessibilityNodeInfo webViewRoot : webViewRoots) {
+                mScanner.scan(webViewRoot, pgpNodes);
+            }
         }
+
+        final boolean replaceAll = fullScan;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                applyScanResult(replaceAll ? null : webViewRoots, pgpNodes);
+            }
+        });
     }
 
-    @Nullable
-    public Uri readToTempFile(String text) throws IOException {
-        Uri tempFile = TemporaryStorageProvider.createFile(this);
-        OutputStream outStream = getContentResolver().openOutputStream(tempFile);
-        if (outStream == null) {
-            return null;
+    /**
+     * Adds the WebView subtree containing source to webViewRoots.
+     *
+     * @return false if source is stale or outside of any WebView, thus a full scan is needed
+     */
+    private boolean collectWebViewRoot(AccessibilityNodeInfo source,
+                                       List<AccessibilityNodeInfo> webViewRoots) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 && !source.refresh()) {
+            return false;
         }
 
-        outStream.write(text.getBytes());
-        outStream.close();
-        return tempFile;
+        AccessibilityNodeInfo webViewRoot = mScanner.findWebViewRoot(source);
+        if (webViewRoot == null) {
+            // leaves outside of WebViews cannot contain messages
+            return source.getChildCount() == 0;
+        }
+        if (webViewRoots.contains(webViewRoot)) {
+            webViewRoot.recycle();
+        } else {
+            webViewRoots.add(webViewRoot);
+        }
+        return true;
     }
 
-    private String fixContentDescription(AccessibilityNodeInfo node) {
-        String content = node.getContentDescription().toString();
-
-        // NOTE: Unfortunately, line breaks are missing from content description, thus
-        // we are reformatting now:
+    /**
+     * Replaces detections inside the scanned WebViews, or all detections after a full scan.
+     *
+     * @param scannedWebViews null for a full scan
+     */
+    private void applyScanResult(@Nullable List<AccessibilityNodeInfo> scannedWebViews,
+                                 List<DetectedMessage> pgpNodes) {
+        if (mIoExecutor == null || mIoExecutor.isShutdown()) {
+            // service has been destroyed while scanning
+            for (DetectedMessage detected : pgpNodes) {
+                detected.recycle();
+            }
+            if (scannedWebViews != null) {
+                recycleAll(scannedWebViews);
+            }
+            return;
+        }
+        Iterator<DetectedMessage> it = mDetected.iterator();
+        while (it.hasNext()) {
+            DetectedMessage detected = it.next();
+            if (scannedWebViews == null || scannedWebViews.contains(detected.getWebView())) {
+                detected.recycle();
+                it.remove();
+            }
+        }
+        mDetected.addAll(pgpNodes);
+        if (scannedWebViews != null) {
+            recycleAll(scannedWebViews);
+        }
 
-        // TODO: get charset from header?
+        showOverlays(mDetected);
+        speculate(mDetected);
+    }
 
-        // find "hQ", start of pgp message (0x80 byte) and remove everything before
-        content = content.replaceFirst(".*hQ", "hQ");
+    private void showOverlays(List<DetectedMessage> pgpNodes) {
+        if (mOverlayManager.getShownCount() > 0 && isShownUnchanged(pgpNodes)) {
+            Log.d(Constants.TAG, "overlays unchanged");
+            return;
+        }
 
-        StringBuilder builder = new StringBuilder(content);
+        mOverlayManager.show(pgpNodes);
+        for (DetectedMessage detected : pgpNodes) {
+            mDetectionCache.putOverlayBounds(detected.getKey(), detected.getBounds());
+        }
+    }
 
-        // re-add -----BEGIN PGP MESSAGE-----
-        String header = BEGIN_PGP_MESSAGE + "\n\n";
-        builder.insert(0, header);
+    /**
+     * Starts preparing the armor of newly detected messages on the I/O thread, so a click only
+     * has to start OpenKeychain. Preparations of messages that are gone are cancelled. At most
+     * {@link Constants#SPECULATIVE_MAX_BYTES} of content are prepared ahead, larger messages are
+     * prepared on click.
+     */
+    private void speculate(List<DetectedMessage> pgpNodes) {
+        HashSet<DetectionCache.Key> keys = new HashSet<>();
+        for (DetectedMessage detected : pgpNodes) {
+            keys.add(detected.getKey());
+        }
+        Iterator<Map.Entry<DetectionCache.Key, Speculation>> it =
+                mSpeculations.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<DetectionCache.Key, Speculation> entry = it.next();
+            if (!keys.contains(entry.getKey())) {
+                cancelSpeculation(entry.getValue());
+                it.remove();
+            }
+        }
 
-        int indexOfEnd = builder.lastIndexOf(END_PGP_MESSAGE);
-        // TODO: check if END pgp message is really inside string! if not -> gmail has cut it!
-        builder.insert(indexOfEnd, "\n");
-        int i = indexOfEnd - CHECKSUM_LENGTH;
-        builder.insert(i, "\n");
+        if (mIoExecutor.isShutdown()) {
+            return;
+        }
+        // onDestroy drops it on this thread while preparations may still run
+        final PlaintextCache cache = mPlaintextCache;
+        for (DetectedMessage detected : pgpNodes) {
+            final DetectionCache.Key key = detected.getKey();
+            if (mSpeculations.containsKey(key) || mOverlayManager.isDismissed(key)) {
+                continue;
+            }
+            final MessageDetector.Detection detection = detected.getDetection();
+            if (!detection.getType().hasAction()) {
+                // never clicked
+                continue;
+            }
+            final CharSequence description = detected.getNode().getContentDescription();
+            if (description == null
+                    || mSpeculativeBytes + description.length() > Constants.SPECULATIVE_MAX_BYTES) {
+                continue;
+            }
+            final Speculation speculation = new Speculation(description.length());
+            mSpeculativeBytes += speculation.mBytes;
+            mSpeculations.put(key, speculation);
+            speculation.mFuture = mIoExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    prepareSpeculatively(key, speculation, description, detection, cache);
+                }
+            });
+        }
+    }
 
-        // split into 65 character chunks
-        int currentIndex = header.length() + 64;
-        while (currentIndex < indexOfEnd) {
-            builder.insert(currentIndex, "\n");
-            currentIndex += 65;
+    /**
+     * Also shows the plaintext right away if the message has already been decrypted.
+     *
+     * @param cache null if messages are not decrypted in the overlay
+     */
+    @WorkerThread
+    private void prepareSpeculatively(final DetectionCache.Key key,
+                                      final Speculation speculation, CharSequence description,
+                                      MessageDetector.Detection detection,
+                                      @Nullable PlaintextCache cache) {
+        synchronized (speculation) {
+            if (speculation.mCancelled) {
+                return;
+            }
+        }
+        ArmorReflow armor = null;
+        ArmorValidator.Result validation = null;
+        Uri uri = null;
+        boolean shown = false;
+        try {
+            armor = ArmorReflow.parse(description, detection.getType(), detection.getOffset());
+            validation = ArmorValidator.validate(armor);
+            // in-memory pipes cost nothing to create but expire, they are created on click
+            if (validation == ArmorValidator.Result.VALID && detection.getType() == ArmorType.MESSAGE
+                    && cache != null && !cache.isEmpty()) {
+                byte[] cached = cache.get(hash(armor));
+                if (cached != null) {
+                    final String plaintext = decode(cached);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onCachedPlaintext(key, speculation, plaintext);
+                        }
+                    });
+                    shown = true;
+                }
+            }
+            // no file for OpenKeychain if the plaintext is shown without it
+            if (validation == ArmorValidator.Result.VALID && !shown
+                    && !Constants.TEMPSTORAGE_USE_PIPES) {
+                uri = readToTempFile(armor);
+            }
+        } catch (IOException e) {
+            // repeated on click
+            Log.d(Constants.TAG, "speculative preparation failed", e);
+        }
 
-            // stop where checksum starts
-            indexOfEnd = builder.lastIndexOf(END_PGP_MESSAGE) - CHECKSUM_LENGTH - 2;
+        boolean cancelled;
+        synchronized (speculation) {
+            speculation.mArmor = armor;
+            speculation.mValidation = validation;
+            speculation.mUri = uri;
+            speculation.mDone = true;
+            cancelled = speculation.mCancelled;
+        }
+        if (cancelled) {
+            deleteTempFile(uri);
         }
+    }
 
-        content = builder.toString();
+    private void onCachedPlaintext(DetectionCache.Key key, Speculation speculation,
+                                   String plaintext) {
+        if (mSpeculations.get(key) != speculation || speculation.mConsumed) {
+            // gone or clicked meanwhile
+            return;
+        }
+        speculation.mConsumed = true;
+        mSpeculativeBytes -= speculation.mBytes;
+        mOverlayManager.showPlaintext(key, plaintext);
+    }
 
-        if (Constants.DEBUG) {
-            // split for long messages
-            for (String line : content.split("\n")) {
-                Log.d(Constants.TAG, line);
-            }
+    /**
+     * Stops a speculation that has not been clicked, its temporary entry is deleted.
+     */
+    private void cancelSpeculation(Speculation speculation) {
+        if (speculation.mConsumed) {
+            return;
+        }
+        mSpeculativeBytes -= speculation.mBytes;
+        speculation.mFuture.cancel(false);
+        final Uri uri;
+        synchronized (speculation) {
+            speculation.mCancelled = true;
+            uri = speculation.mUri;
+            speculation.mUri = null;
         }
+        if (uri != null && !mIoExecutor.isShutdown()) {
+            mIoExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deleteTempFile(uri);
+                }
+            });
+        }
+    }
 
-        return content;
+    @WorkerThread
+    private void deleteTempFile(@Nullable Uri uri) {
+        if (uri != null) {
+            getContentResolver().delete(uri, null, null);
+        }
     }
 
-    @SuppressLint("RtlHardcoded")
-    private void drawOverlay(AccessibilityNodeInfo node, View.OnClickListener onClickListener) {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onDismissClick(DetectionCache.Key key) {
+        Speculation speculation = mSpeculations.remove(key);
+        if (speculation != null) {
+            cancelSpeculation(speculation);
+        }
+    }
 
-        mOverlay = new FrameLayout(this);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onDecryptClick(final DetectionCache.Key key) {
+        // nodes are replaced by every scan, resolve the current one
+        DetectedMessage current = findDetected(key);
+        if (current == null) {
+            mOverlayManager.dismiss(key);
+            return;
+        }
 
-        // must be encapsulated into FrameLayout for animation
-        FrameLayout mAnimatedChild = new FrameLayout(this);
-        LayoutInflater systemInflater = (LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        final Context contextThemeWrapper = new ContextThemeWrapper(this, R.style.FixedBottomSheetTheme);
-        LayoutInflater inflater = systemInflater.cloneInContext(contextThemeWrapper);
+        final CharSequence description = current.getNode().getContentDescription();
+        final MessageDetector.Detection detection = current.getDetection();
+        Speculation speculation = mSpeculations.get(key);
+        if (speculation != null && !speculation.mConsumed) {
+            // kept until the message is gone, so it is not prepared again
+            speculation.mConsumed = true;
+            mSpeculativeBytes -= speculation.mBytes;
+        } else {
+            speculation = null;
+        }
+        final Speculation finalSpeculation = speculation;
+        // onDestroy drops them on this thread while the preparation may still run
+        final OpenPgpDecryptor decryptor = mDecryptor;
+        final PlaintextCache cache = mPlaintextCache;
+        mOverlayManager.showPreparing(key);
+        // runs after the speculation, the I/O thread executes in submission order
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                prepareDecrypt(key, description, detection, finalSpeculation, decryptor, cache);
+            }
+        });
+    }
 
-        View child = inflater.inflate(R.layout.fixed_bottom_sheet, null);
-        mAnimatedChild.addView(child);
+    /**
+     * Validates the armor on the I/O thread and decrypts it through OpenKeychain's service, or
+     * writes it into a temporary file for OpenKeychain's activity. The outcome is posted back to
+     * the main looper.
+     *
+     * @param speculation already prepared armor, null if there is none
+     * @param decryptor   null if messages are not decrypted in the overlay
+     */
+    @WorkerThread
+    private void prepareDecrypt(final DetectionCache.Key key, CharSequence description,
+                                MessageDetector.Detection detection,
+                                @Nullable Speculation speculation,
+                                @Nullable OpenPgpDecryptor decryptor,
+                                @Nullable PlaintextCache cache) {
+        ArmorReflow armor = null;
+        ArmorValidator.Result validation = null;
+        Uri preparedUri = null;
+        if (speculation != null) {
+            synchronized (speculation) {
+                armor = speculation.mArmor;
+                validation = speculation.mValidation;
+                preparedUri = speculation.mUri;
+            }
+            if (armor == null || description == null
+                    || !armor.getContent().contentEquals(description)) {
+                // failed or the content has changed since
+                deleteTempFile(preparedUri);
+                armor = null;
+                validation = null;
+                preparedUri = null;
+            }
+        }
 
-        Button b = (Button) child.findViewById(R.id.fixed_bottom_sheet_button);
-        b.setText(R.string.decrypt_with_openkeychain);
-        b.setOnClickListener(onClickListener);
+        String plaintext = null;
+        Uri uri = null;
+        // reject broken messages before any disk I/O or intent to OpenKeychain
+        try {
+            if (armor == null) {
+                armor = ArmorReflow.parse(description,
+                        detection.getType(), detection.getOffset());
+                validation = ArmorValidator.validate(armor);
+            }
+            if (validation == ArmorValidator.Result.VALID) {
+                if (decryptor != null && cache != null
+                        && detection.getType() == ArmorType.MESSAGE) {
+                    plaintext = decryptInOverlay(armor, decryptor, cache);
+                }
+                if (plaintext != null) {
+                    deleteTempFile(preparedUri);
+                } else {
+                    uri = preparedUri != null ? preparedUri : readToTempFile(armor);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "preparing armor failed!", e);
+        }
 
-        ImageButton close = (ImageButton) child.findViewById(R.id.fixed_bottom_sheet_close);
-        close.setOnClickListener(new View.OnClickListener() {
+        final ArmorValidator.Result finalValidation = validation;
+        final String finalPlaintext = plaintext;
+        final Uri finalUri = uri;
+        final ArmorType type = detection.getType();
+        mMainHandler.post(new Runnable() {
             @Override
-            public void onClick(View v) {
-                closeOverlay();
+            public void run() {
+                onDecryptPrepared(key, type, finalValidation, finalPlaintext, finalUri);
             }
         });
+    }
+
+    /**
+     * Streams the re-flowed armor into OpenKeychain's service through an in-memory pipe, unless
+     * the plaintext is still cached.
+     *
+     * @return the plaintext, null if OpenKeychain's activity has to decrypt it
+     */
+    @Nullable
+    @WorkerThread
+    private String decryptInOverlay(ArmorReflow armor, OpenPgpDecryptor decryptor,
+                                    PlaintextCache cache) throws IOException {
+        byte[] digest = hash(armor);
+        byte[] plaintext = cache.get(digest);
+        if (plaintext != null) {
+            return decode(plaintext);
+        }
+        if (mIoExecutor.isShutdown()) {
+            // destroyed, the decryptor has been unbound
+            return null;
+        }
 
-        Rect webviewRect = new Rect();
-        node.getBoundsInScreen(webviewRect);
-
-        Display display = mWindowManager.getDefaultDisplay();
-        Rect displayRect = new Rect();
-        display.getRectSize(displayRect);
-
-        int xpos = webviewRect.left;
-        int ypos = webviewRect.top - getStatusBarHeight() < getToolbarHeight() ?
-                getToolbarHeight()
-                : webviewRect.top - getStatusBarHeight();
-
-        int width = webviewRect.width();
-        int height = webviewRect.bottom < displayRect.height() ?
-                webviewRect.bottom - getToolbarHeight() - getStatusBarHeight()
-                : displayRect.height() - ypos - getStatusBarHeight();
-
-        WindowManager.LayoutParams params = new WindowManager.LayoutParams(
-                width,
-                height,
-                xpos,
-                ypos,
-                WindowManager.LayoutParams.TYPE_SYSTEM_ALERT,
-                WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE
-                        | WindowManager.LayoutParams.FLAG_NOT_TOUCH_MODAL,
-                PixelFormat.TRANSLUCENT);
-        params.gravity = Gravity.TOP | Gravity.LEFT;
-        params.windowAnimations = R.style.OverlayAnimation;
-        mWindowManager.addView(mOverlay, params);
-        mOverlay.addView(mAnimatedChild);
+        // read by OpenPgpApi's own pump, without a round trip through the provider
+        plaintext = decryptor.decrypt(armor.newInputStream());
+        if (plaintext == null) {
+            return null;
+        }
+        if (mIoExecutor.isShutdown()) {
+            // nobody shows it anymore, the cache has been cleared
+            Arrays.fill(plaintext, (byte) 0);
+            return null;
+        }
+        cache.put(digest, plaintext);
+        return decode(plaintext);
     }
 
-    public int getToolbarHeight() {
-        TypedValue tv = new TypedValue();
-        getTheme().resolveAttribute(android.R.attr.actionBarSize, tv, true);
-        return getResources().getDimensionPixelSize(tv.resourceId);
+    /**
+     * Decodes plaintext bytes and zeroes them.
+     */
+    private static String decode(byte[] plaintext) {
+        try {
+            return new String(plaintext, UTF_8);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
     }
 
-    public int getStatusBarHeight() {
-        int result = 0;
-        int resourceId = getResources().getIdentifier("status_bar_height", "dimen", "android");
-        if (resourceId > 0) {
-            result = getResources().getDimensionPixelSize(resourceId);
+    /**
+     * @param validation null if the armor could not be parsed
+     * @param plaintext  null if the message has not been decrypted by OpenKeychain's service
+     * @param uri        null if no temporary file has been written
+     */
+    private void onDecryptPrepared(DetectionCache.Key key, ArmorType type,
+                                   @Nullable ArmorValidator.Result validation,
+                                   @Nullable String plaintext, @Nullable Uri uri) {
+        if (mIoExecutor == null || mIoExecutor.isShutdown()) {
+            // service has been destroyed meanwhile
+            return;
+        }
+        if (validation == ArmorValidator.Result.TRUNCATED) {
+            Log.d(Constants.TAG, "message has been clipped by Gmail");
+            mOverlayManager.showTruncated(key);
+            return;
+        }
+        if (validation == ArmorValidator.Result.CORRUPTED) {
+            Log.e(Constants.TAG, "armor is corrupted!");
+            Toast.makeText(this, R.string.error_message_corrupted, Toast.LENGTH_SHORT).show();
+        }
+
+        if (plaintext != null) {
+            mOverlayManager.showPlaintext(key, plaintext);
+            return;
+        }
+        mOverlayManager.dismiss(key);
+        if (uri != null) {
+            startOpenKeychain(type, uri);
         }
-        return result;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onOpenFullMessageClick(DetectionCache.Key key) {
+        DetectedMessage current = findDetected(key);
+        mOverlayManager.dismiss(key);
+        if (current == null) {
+            return;
+        }
 
-    private void findPgpNodeInfo(AccessibilityNodeInfo parent,
-                                 ArrayList<AccessibilityNodeInfo> pgpNodes) {
+        // click Gmail's own link below the clipped message
+        boolean clicked = false;
+        List<AccessibilityNodeInfo> links = current.getWebView()
+                .findAccessibilityNodeInfosByText(getString(R.string.gmail_view_entire_message));
+        if (links != null) {
+            for (AccessibilityNodeInfo link : links) {
+                if (!clicked) {
+                    clicked = link.performAction(AccessibilityNodeInfo.ACTION_CLICK);
+                }
+                link.recycle();
+            }
+        }
+        if (!clicked) {
+            Toast.makeText(this, R.string.error_message_clipped, Toast.LENGTH_LONG).show();
+        }
+    }
 
-        for (int i = 0; i < parent.getChildCount(); i++) {
-            AccessibilityNodeInfo currentChild = parent.getChild(i);
+    /**
+     * @return true if exactly these messages are already overlaid at their current bounds
+     */
+    private boolean isShownUnchanged(List<DetectedMessage> pgpNodes) {
+        if (pgpNodes.size() != mOverlayManager.getShownCount()) {
+            return false;
+        }
+        for (DetectedMessage detected : pgpNodes) {
+            if (!detected.getBounds().equals(mDetectionCache.getOverlayBounds(detected.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-            /*
-             WebView
-             |- WebView
-                |- View
-                |- View
-                |- View
-             */
-            if (WEB_VIEW_CLASS_NAME.equals(parent.getClassName())
-                    && VIEW_CLASS_NAME.equals(currentChild.getClassName())
-                    && !TextUtils.isEmpty(currentChild.getContentDescription())
-                    && currentChild.getContentDescription().toString().startsWith(BEGIN_PGP_MESSAGE)) {
+    @Nullable
+    private DetectedMessage findDetected(DetectionCache.Key key) {
+        for (DetectedMessage detected : mDetected) {
+            if (detected.getKey().equals(key)) {
+                return detected;
+            }
+        }
+        return null;
+    }
 
-                pgpNodes.add(currentChild);
-            } else {
-                // recursive traversal
-                findPgpNodeInfo(currentChild, pgpNodes);
+    private void startOpenKeychain(ArmorType type, Uri dataUri) {
+        // decrypt and verify share one action, keys are imported
+        Intent i = new Intent(type.getIntentAction());
+        i.setPackage(Constants.OPEN_KEYCHAIN_PACKAGE_NAME);
+        i.setData(dataUri);
+        i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        startActivity(i);
+    }
+
+    /**
+     * Streams the re-flowed armor into a new temporary file, without building it in memory. With
+     * {@link Constants#TEMPSTORAGE_USE_PIPES}, no file is written at all. With
+     * {@link Constants#TEMPSTORAGE_DEDUPLICATE}, nothing is written if the same armor is still
+     * stored.
+     */
+    @Nullable
+    @WorkerThread
+    public Uri readToTempFile(ArmorReflow armor) throws IOException {
+        // NOTE: Unfortunately, line breaks are missing from content description, thus
+        // we are reformatting while writing
+        if (Constants.DEBUG) {
+            // split for long messages
+            for (String line : armor.toString().split("\n")) {
+                Log.d(Constants.TAG, line);
+            }
+        }
+
+        if (Constants.TEMPSTORAGE_USE_PIPES) {
+            return createPipe(armor);
+        }
+
+        Uri tempFile;
+        if (Constants.TEMPSTORAGE_DEDUPLICATE) {
+            // hashing is cheaper than writing, the same message is often opened again
+            tempFile = TemporaryStorageProvider.createFile(this, hash(armor));
+            if (tempFile != null && TemporaryStorageProvider.hasContent(tempFile)) {
+                return tempFile;
+            }
+        } else {
+            tempFile = TemporaryStorageProvider.createFile(this);
+        }
+        OutputStream outStream = getContentResolver().openOutputStream(tempFile);
+        if (outStream == null) {
+            return null;
+        }
+
+        AsciiWriter writer = new AsciiWriter(outStream);
+        try {
+            armor.writeTo(writer);
+        } finally {
+            writer.close();
+        }
+        TemporaryStorageProvider.setSize(this, tempFile, writer.getWrittenBytes());
+        return tempFile;
+    }
+
+    /**
+     * @return digest of the bytes {@link #readToTempFile(ArmorReflow)} would write
+     */
+    private static byte[] hash(ArmorReflow armor) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(TemporaryStorageProvider.HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        AsciiWriter writer = new AsciiWriter(new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // only digested
+            }
 
-                currentChild.recycle();
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // only digested
             }
+        }, digest));
+        try {
+            armor.writeTo(writer);
+        } finally {
+            writer.close();
         }
+        return digest.digest();
+    }
+
+    /**
+     * Keeps the armor in memory only, it is re-flowed whenever OpenKeychain opens the Uri.
+     */
+    private static Uri createPipe(final ArmorReflow armor) {
+        return TemporaryStorageProvider.createPipe(new TemporaryStorageProvider.PipeWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                AsciiWriter writer = new AsciiWriter(out);
+                try {
+                    armor.writeTo(writer);
+                } finally {
+                    writer.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        if (mDisplayGeometry == null) {
+            return;
+        }
+        mDisplayGeometry.invalidate();
+
+        // all bounds have changed, place overlays again after a full scan
+        synchronized (mPendingSources) {
+            mPendingFullScan = true;
+            recycleAll(mPendingSources);
+        }
+        mScanCoalescer.schedule();
     }
 
     /**
@@ -299,13 +899,41 @@ public class GmAccessibilityService extends AccessibilityService {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        closeOverlay();
+        if (mScanThread != null) {
+            mScanCoalescer.cancel();
+            mNotificationTimeout.cancel();
+            mScanThread.quit();
+            mScanThread = null;
+            mIoExecutor.shutdownNow();
+            mMainHandler.removeCallbacksAndMessages(null);
+        }
+        synchronized (mPendingSources) {
+            recycleAll(mPendingSources);
+        }
+        if (mOverlayManager != null) {
+            mOverlayManager.hideAll();
+        }
+        for (DetectedMessage detected : mDetected) {
+            detected.recycle();
+        }
+        mDetected.clear();
+        mDetectionCache.clear();
+        // temporary entries of unused speculations expire by themselves
+        mSpeculations.clear();
+        mSpeculativeBytes = 0;
+        if (mDecryptor != null) {
+            mDecryptor.unbind();
+            mDecryptor = null;
+            unregisterReceiver(mScreenOffReceiver);
+            mPlaintextCache.clear();
+            mPlaintextCache = null;
+        }
     }
 
-    private void closeOverlay() {
-        if (mOverlay != null && ViewCompat.isAttachedToWindow(mOverlay)) {
-            mWindowManager.removeView(mOverlay);
-            mOverlay = null;
+    private static void recycleAll(List<AccessibilityNodeInfo> nodes) {
+        for (AccessibilityNodeInfo node : nodes) {
+            node.recycle();
         }
+        nodes.clear();
     }
 }
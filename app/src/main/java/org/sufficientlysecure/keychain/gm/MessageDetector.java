@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+/**
+ * Registry of the armored blocks to look for in content descriptions. All registered headers are
+ * matched in a single pass, so adding formats does not add string work per node.
+ * <p/>
+ * Cleartext signatures are skipped: line breaks are part of the signed text, but missing from
+ * content descriptions, so they could never be verified.
+ */
+public class MessageDetector {
+
+    private static final String CLEARTEXT_HEADER = "-----BEGIN PGP SIGNED MESSAGE-----";
+
+    private final ArmorType[] mTypes;
+    private final MultiPatternMatcher mMatcher;
+
+    public MessageDetector(ArmorType... types) {
+        mTypes = types;
+        String[] headers = new String[types.length + 1];
+        for (int i = 0; i < types.length; i++) {
+            headers[i] = types[i].getHeader();
+        }
+        headers[types.length] = CLEARTEXT_HEADER;
+        mMatcher = new MultiPatternMatcher(headers);
+    }
+
+    public static MessageDetector createDefault() {
+        return new MessageDetector(ArmorType.values());
+    }
+
+    /**
+     * @return the first armored block inside the text, null if there is none
+     */
+    @Nullable
+    public Detection detect(CharSequence text) {
+        int from = 0;
+        while (true) {
+            MultiPatternMatcher.Match match = mMatcher.findFirst(text, from);
+            if (match == null) {
+                return null;
+            }
+            if (match.getPattern() < mTypes.length) {
+                return new Detection(mTypes[match.getPattern()], match.getStart());
+            }
+            // its signature block must not be taken for a detached signature
+            String footer = ArmorType.SIGNATURE.getFooter();
+            int end = TextUtils.indexOf(text, footer, match.getStart());
+            if (end == -1) {
+                return null;
+            }
+            from = end + footer.length();
+        }
+    }
+
+    public static class Detection {
+        private final ArmorType mType;
+        private final int mOffset;
+
+        public Detection(ArmorType type, int offset) {
+            mType = type;
+            mOffset = offset;
+        }
+
+        public ArmorType getType() {
+            return mType;
+        }
+
+        /**
+         * @return index of the block's header inside the content description
+         */
+        public int getOffset() {
+            return mOffset;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick automaton finding any of several ASCII patterns in a single pass over a text,
+ * independent of the number of patterns.
+ * <p/>
+ * The failure links are resolved into a full transition table when building, so matching costs
+ * one array lookup per character.
+ */
+public class MultiPatternMatcher {
+
+    private static final int ALPHABET_SIZE = 128;
+
+    private final int[][] mTransitions;
+    // index of the pattern ending in a state, -1 for none
+    private final int[] mOutput;
+    private final int[] mPatternLengths;
+
+    public MultiPatternMatcher(String... patterns) {
+        mPatternLengths = new int[patterns.length];
+
+        // build trie
+        ArrayList<int[]> transitions = new ArrayList<>();
+        ArrayList<Integer> output = new ArrayList<>();
+        transitions.add(newState());
+        output.add(-1);
+        for (int p = 0; p < patterns.length; p++) {
+            String pattern = patterns[p];
+            mPatternLengths[p] = pattern.length();
+
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c >= ALPHABET_SIZE) {
+                    throw new IllegalArgumentException("only ASCII patterns are supported");
+                }
+                if (transitions.get(state)[c] == -1) {
+                    transitions.get(state)[c] = transitions.size();
+                    transitions.add(newState());
+                    output.add(-1);
+                }
+                state = transitions.get(state)[c];
+            }
+            output.set(state, p);
+        }
+
+        mTransitions = transitions.toArray(new int[transitions.size()][]);
+        mOutput = new int[output.size()];
+        for (int i = 0; i < mOutput.length; i++) {
+            mOutput[i] = output.get(i);
+        }
+
+        // resolve failure links breadth-first into the transition table
+        int[] failure = new int[mTransitions.length];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET_SIZE; c++) {
+            int next = mTransitions[0][c];
+            if (next == -1) {
+                mTransitions[0][c] = 0;
+            } else {
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int c = 0; c < ALPHABET_SIZE; c++) {
+                int next = mTransitions[state][c];
+                if (next == -1) {
+                    mTransitions[state][c] = mTransitions[failure[state]][c];
+                } else {
+                    failure[next] = mTransitions[failure[state]][c];
+                    if (mOutput[next] == -1) {
+                        mOutput[next] = mOutput[failure[next]];
+                    }
+                    queue.add(next);
+                }
+            }
+        }
+    }
+
+    private static int[] newState() {
+        int[] state = new int[ALPHABET_SIZE];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    /**
+     * @return the first match in text order, null if no pattern occurs in text
+     */
+    @Nullable
+    public Match findFirst(CharSequence text) {
+        return findFirst(text, 0);
+    }
+
+    /**
+     * @return the first match starting at or after from, null if there is none
+     */
+    @Nullable
+    public Match findFirst(CharSequence text, int from) {
+        int state = 0;
+        int length = text.length();
+        for (int i = from; i < length; i++) {
+            char c = text.charAt(i);
+            state = c < ALPHABET_SIZE ? mTransitions[state][c] : 0;
+            int pattern = mOutput[state];
+            if (pattern != -1) {
+                return new Match(pattern, i + 1 - mPatternLengths[pattern]);
+            }
+        }
+        return null;
+    }
+
+    public static class Match {
+        private final int mPattern;
+        private final int mStart;
+
+        Match(int pattern, int start) {
+            mPattern = pattern;
+            mStart = start;
+        }
+
+        /**
+         * @return index of the matched pattern, as passed to the constructor
+         */
+        public int getPattern() {
+            return mPattern;
+        }
+
+        public int getStart() {
+            return mStart;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import org.openintents.openpgp.OpenPgpError;
+import org.openintents.openpgp.util.OpenPgpApi;
+import org.openintents.openpgp.util.OpenPgpServiceConnection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decrypts messages through OpenKeychain's OpenPGP service instead of starting its activity.
+ * <p/>
+ * The service is bound once and the binding is kept for all following decrypts, so a decrypt
+ * only costs the IPC and the crypto. The armor is streamed into the service through a pipe.
+ * Messages needing user interaction, e.g. for a passphrase, are left to OpenKeychain's activity.
+ * Buffers that held plaintext are overwritten with zeros.
+ */
+public class OpenPgpDecryptor {
+
+    private final Context mContext;
+    private final OpenPgpServiceConnection mConnection;
+
+    public OpenPgpDecryptor(Context context) {
+        this(context, Constants.OPEN_KEYCHAIN_PACKAGE_NAME);
+    }
+
+    /**
+     * @param providerPackage package of the app implementing the OpenPGP service
+     */
+    public OpenPgpDecryptor(Context context, String providerPackage) {
+        mContext = context;
+        mConnection = new OpenPgpServiceConnection(context, providerPackage);
+    }
+
+    public void bind() {
+        if (!mConnection.isBound()) {
+            mConnection.bindToService();
+        }
+    }
+
+    public void unbind() {
+        mConnection.unbindFromService();
+    }
+
+    public boolean isBound() {
+        return mConnection.isBound();
+    }
+
+    /**
+     * Blocks until OpenKeychain has decrypted the armor.
+     *
+     * @return the plaintext bytes, null if the service is not bound, OpenKeychain needs user
+     * interaction or decryption failed
+     */
+    @Nullable
+    @WorkerThread
+    public byte[] decrypt(InputStream armor) {
+        if (!mConnection.isBound()) {
+            // not installed or its process has died, try again for the next message
+            Log.d(Constants.TAG, "OpenPGP service not bound");
+            bind();
+            return null;
+        }
+
+        OpenPgpApi api = new OpenPgpApi(mContext, mConnection.getService());
+        WipeableOutputStream plaintext = new WipeableOutputStream();
+        try {
+            Intent result = api.executeApi(new Intent(OpenPgpApi.ACTION_DECRYPT_VERIFY), armor,
+                    plaintext);
+
+            switch (result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR)) {
+                case OpenPgpApi.RESULT_CODE_SUCCESS:
+                    return plaintext.toByteArray();
+                case OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED:
+                    Log.d(Constants.TAG, "OpenKeychain needs user interaction");
+                    return null;
+                default:
+                    OpenPgpError error = result.getParcelableExtra(OpenPgpApi.RESULT_ERROR);
+                    Log.e(Constants.TAG, "OpenPGP service failed: "
+                            + (error != null ? error.getMessage() : "unknown error"));
+                    return null;
+            }
+        } finally {
+            plaintext.wipe();
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream whose buffers are zeroed when they are replaced by larger ones and by
+     * {@link #wipe()}, instead of being left to the garbage collector.
+     */
+    private static class WipeableOutputStream extends ByteArrayOutputStream {
+
+        @Override
+        public synchronized void write(int b) {
+            ensureCapacity(count + 1);
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            super.write(b, off, len);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= buf.length) {
+                return;
+            }
+            byte[] grown = Arrays.copyOf(buf, Math.max(buf.length * 2, capacity));
+            Arrays.fill(buf, (byte) 0);
+            buf = grown;
+        }
+
+        synchronized void wipe() {
+            Arrays.fill(buf, (byte) 0);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.view.ContextThemeWrapper;
+import android.view.Gravity;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.WindowManager;
+import android.widget.Button;
+import android.widget.FrameLayout;
+import android.widget.ImageButton;
+import android.widget.TextView;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows one overlay window per detected message above Gmail.
+ * <p/>
+ * Overlays are tracked by the message they belong to. On every scan the new set of messages is
+ * diffed against the shown overlays: only overlays of new messages are added, moved messages get
+ * updateViewLayout, and overlays of vanished messages are removed and go back into a small pool
+ * for reuse. Must only be used on the main thread.
+ */
+public class OverlayManager {
+
+    private static final int MAX_POOL_SIZE = 4;
+
+    public interface Listener {
+        void onDecryptClick(DetectionCache.Key key);
+
+        void onOpenFullMessageClick(DetectionCache.Key key);
+
+        void onDismissClick(DetectionCache.Key key);
+    }
+
+    private static final int STATE_DECRYPT = 0;
+    // message has been clipped by Gmail, offer to open the full message instead
+    private static final int STATE_TRUNCATED = 1;
+    // decrypt has been clicked, the temporary file is being written
+    private static final int STATE_PREPARING = 2;
+    // OpenKeychain's service has decrypted the message, the plaintext is shown
+    private static final int STATE_PLAINTEXT = 3;
+
+    private final Context mContext;
+    private final WindowManager mWindowManager;
+    private final DisplayGeometry mGeometry;
+    private final Listener mListener;
+
+    // overlays by the message they are shown for
+    private final LinkedHashMap<DetectionCache.Key, Overlay> mShown = new LinkedHashMap<>();
+    private final ArrayDeque<Overlay> mPool = new ArrayDeque<>();
+    // messages whose overlay has been closed by the user
+    private final HashSet<DetectionCache.Key> mDismissed = new HashSet<>();
+
+    public OverlayManager(Context context, WindowManager windowManager, DisplayGeometry geometry,
+                          Listener listener) {
+        mContext = context;
+        mWindowManager = windowManager;
+        mGeometry = geometry;
+        mListener = listener;
+    }
+
+    public int getShownCount() {
+        return mShown.size();
+    }
+
+    /**
+     * Shows overlays for exactly the given messages. Overlays of messages that are still detected
+     * are kept and only moved if needed, the others are removed.
+     */
+    public void show(List<DetectedMessage> messages) {
+        HashSet<DetectionCache.Key> keys = new HashSet<>();
+        for (DetectedMessage message : messages) {
+            keys.add(message.getKey());
+        }
+
+        Iterator<Map.Entry<DetectionCache.Key, Overlay>> it = mShown.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<DetectionCache.Key, Overlay> entry = it.next();
+            if (!keys.contains(entry.getKey())) {
+                releaseOverlay(entry.getValue());
+                it.remove();
+            }
+        }
+        // forget dismissals of messages that are gone
+        mDismissed.retainAll(keys);
+
+        for (DetectedMessage message : messages) {
+            DetectionCache.Key key = message.getKey();
+            if (mDismissed.contains(key)) {
+                continue;
+            }
+
+            Overlay overlay = mShown.get(key);
+            if (overlay == null) {
+                overlay = obtainOverlay();
+                overlay.mKey = key;
+                mShown.put(key, overlay);
+            }
+            overlay.setType(message.getDetection().getType());
+
+            boolean changed = updateLayoutParams(overlay.mParams, message.getBounds());
+            if (!overlay.mAttached) {
+                mWindowManager.addView(overlay.mRoot, overlay.mParams);
+                overlay.mAttached = true;
+            } else if (changed) {
+                mWindowManager.updateViewLayout(overlay.mRoot, overlay.mParams);
+            }
+        }
+    }
+
+    /**
+     * Removes the overlay of this message until it disappears from the detected messages.
+     */
+    public void dismiss(DetectionCache.Key key) {
+        Overlay overlay = mShown.remove(key);
+        if (overlay != null) {
+            releaseOverlay(overlay);
+        }
+        mDismissed.add(key);
+    }
+
+    /**
+     * @return true if the overlay of this message has been closed while it is still detected
+     */
+    public boolean isDismissed(DetectionCache.Key key) {
+        return mDismissed.contains(key);
+    }
+
+    /**
+     * Disables the button of this message's overlay while the decrypt click is being handled.
+     */
+    public void showPreparing(DetectionCache.Key key) {
+        Overlay overlay = mShown.get(key);
+        if (overlay != null) {
+            overlay.setState(STATE_PREPARING);
+        }
+    }
+
+    /**
+     * Shows the decrypted message inside the overlay of this message.
+     */
+    public void showPlaintext(DetectionCache.Key key, CharSequence plaintext) {
+        Overlay overlay = mShown.get(key);
+        if (overlay != null) {
+            overlay.mPlaintext.setText(plaintext);
+            overlay.setState(STATE_PLAINTEXT);
+        }
+    }
+
+    /**
+     * Switches the overlay of this message to offer opening the full message.
+     */
+    public void showTruncated(DetectionCache.Key key) {
+        Overlay overlay = mShown.get(key);
+        if (overlay != null) {
+            overlay.setState(STATE_TRUNCATED);
+        }
+    }
+
+    /**
+     * Removes all shown plaintext, these overlays offer to decrypt again.
+     */
+    public void clearPlaintext() {
+        for (Overlay overlay : mShown.values()) {
+            if (overlay.mState == STATE_PLAINTEXT) {
+                overlay.setState(STATE_DECRYPT);
+            }
+        }
+    }
+
+    public void hideAll() {
+        for (Overlay overlay : mShown.values()) {
+            releaseOverlay(overlay);
+        }
+        mShown.clear();
+    }
+
+    private Overlay obtainOverlay() {
+        Overlay overlay = mPool.poll();
+        if (overlay == null) {
+            overlay = new Overlay();
+        }
+        return overlay;
+    }
+
+    private void releaseOverlay(Overlay overlay) {
+        if (overlay.mAttached) {
+            mWindowManager.removeView(overlay.mRoot);
+            overlay.mAttached = false;
+        }
+        overlay.mKey = null;
+        overlay.setState(STATE_DECRYPT);
+        if (mPool.size() < MAX_POOL_SIZE) {
+            mPool.add(overlay);
+        }
+    }
+
+    /**
+     * @return true if the params have been changed
+     */
+    private boolean updateLayoutParams(WindowManager.LayoutParams params, Rect webviewRect) {
+        int toolbarHeight = mGeometry.getToolbarHeight();
+        int statusBarHeight = mGeometry.getStatusBarHeight();
+
+        int xpos = webviewRect.left;
+        int ypos = webviewRect.top - statusBarHeight < toolbarHeight ?
+                toolbarHeight
+                : webviewRect.top - statusBarHeight;
+
+        int width = webviewRect.width();
+        int height = webviewRect.bottom < mGeometry.getDisplayHeight() ?
+                webviewRect.bottom - toolbarHeight - statusBarHeight
+                : mGeometry.getDisplayHeight() - ypos - statusBarHeight;
+
+        if (params.x == xpos && params.y == ypos
+                && params.width == width && params.height == height) {
+            return false;
+        }
+        params.x = xpos;
+        params.y = ypos;
+        params.width = width;
+        params.height = height;
+        return true;
+    }
+
+    private class Overlay {
+        final FrameLayout mRoot;
+        final WindowManager.LayoutParams mParams;
+        final Button mButton;
+        final View mPlaintextScroll;
+        final TextView mPlaintext;
+        DetectionCache.Key mKey;
+        boolean mAttached;
+        int mState = STATE_DECRYPT;
+        ArmorType mType = ArmorType.MESSAGE;
+
+        @SuppressLint("RtlHardcoded")
+        Overlay() {
+            mRoot = new FrameLayout(mContext);
+
+            // must be encapsulated into FrameLayout for animation
+            FrameLayout animatedChild = new FrameLayout(mContext);
+            LayoutInflater systemInflater =
+                    (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            final Context contextThemeWrapper =
+                    new ContextThemeWrapper(mContext, R.style.FixedBottomSheetTheme);
+            LayoutInflater inflater = systemInflater.cloneInContext(contextThemeWrapper);
+
+            View child = inflater.inflate(R.layout.fixed_bottom_sheet, null);
+            animatedChild.addView(child);
+            mRoot.addView(animatedChild);
+
+            mButton = (Button) child.findViewById(R.id.fixed_bottom_sheet_button);
+            mButton.setText(mType.getActionLabel());
+            mButton.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    if (mKey == null) {
+                        return;
+                    }
+                    if (mState == STATE_TRUNCATED) {
+                        mListener.onOpenFullMessageClick(mKey);
+                    } else if (mState == STATE_DECRYPT && mType.hasAction()) {
+                        mListener.onDecryptClick(mKey);
+                    }
+                }
+            });
+
+            mPlaintextScroll = child.findViewById(R.id.fixed_bottom_sheet_plaintext_scroll);
+            mPlaintext = (TextView) child.findViewById(R.id.fixed_bottom_sheet_plaintext);
+
+            ImageButton close = (ImageButton) child.findViewById(R.id.fixed_bottom_sheet_close);
+            close.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    if (mKey != null) {
+                        DetectionCache.Key key = mKey;
+                        dismiss(key);
+                        mListener.onDismissClick(key);
+                    }
+                }
+            });
+
+            mParams = new WindowManager.LayoutParams(
+                    0,
+                    0,
+                    0,
+                    0,
+                    WindowManager.LayoutParams.TYPE_SYSTEM_ALERT,
+                    WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE
+                            | WindowManager.LayoutParams.FLAG_NOT_TOUCH_MODAL,
+                    PixelFormat.TRANSLUCENT);
+            mParams.gravity = Gravity.TOP | Gravity.LEFT;
+            mParams.windowAnimations = R.style.OverlayAnimation;
+        }
+
+        /**
+         * Labels the button with the action for this type of armored block.
+         */
+        void setType(ArmorType type) {
+            if (mType == type) {
+                return;
+            }
+            mType = type;
+            if (mState == STATE_DECRYPT) {
+                mButton.setText(type.getActionLabel());
+                mButton.setEnabled(type.hasAction());
+            }
+        }
+
+        void setState(int state) {
+            if (mState == state) {
+                return;
+            }
+            mState = state;
+            mButton.setEnabled(state == STATE_DECRYPT ? mType.hasAction()
+                    : state != STATE_PREPARING && state != STATE_PLAINTEXT);
+            mPlaintextScroll.setVisibility(state == STATE_PLAINTEXT ? View.VISIBLE : View.GONE);
+            if (state != STATE_PLAINTEXT) {
+                // do not keep plaintext of released overlays around
+                mPlaintext.setText(null);
+            }
+            switch (state) {
+                case STATE_DECRYPT:
+                    mButton.setText(mType.getActionLabel());
+                    break;
+                case STATE_TRUNCATED:
+                    mButton.setText(R.string.open_full_message);
+                    break;
+                case STATE_PREPARING:
+                    mButton.setText(R.string.preparing_message);
+                    break;
+                case STATE_PLAINTEXT:
+                    mButton.setText(R.string.decrypted_message);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Finds armored PGP blocks in Gmail's view hierarchy, either in the whole window or only in the
+ * WebView subtree around a changed node.
+ */
+public class PgpNodeScanner {
+
+    static final String WEB_VIEW_CLASS_NAME = "android.webkit.WebView";
+    static final String VIEW_CLASS_NAME = "android.view.View";
+
+    private static final int MAX_ANCESTOR_DEPTH = 64;
+
+    // limits the cost of a single scan on pathological layouts
+    private static final int MAX_DEPTH = 48;
+    private static final int MAX_VISITED_NODES = 2000;
+
+    // widgets that never contain a WebView
+    private static final HashSet<String> LEAF_CLASS_NAMES = new HashSet<>(Arrays.asList(
+            "android.widget.TextView",
+            "android.widget.Button",
+            "android.widget.ImageView",
+            "android.widget.ImageButton",
+            "android.widget.EditText",
+            "android.widget.CheckBox",
+            "android.widget.CheckedTextView",
+            "android.widget.ProgressBar",
+            "android.widget.Switch",
+            "android.widget.Spinner"
+    ));
+
+    // entry names of view ids whose subtrees never host a conversation
+    private static final HashSet<String> PRUNED_VIEW_IDS = new HashSet<>(Arrays.asList(
+            "statusBarBackground",
+            "navigationBarBackground",
+            "action_bar_container",
+            "toolbar",
+            "mail_toolbar"
+    ));
+
+    private final DetectionCache mCache;
+    private final MessageDetector mDetector;
+
+    public PgpNodeScanner(DetectionCache cache, MessageDetector detector) {
+        mCache = cache;
+        mDetector = detector;
+    }
+
+    /**
+     * Walks up from the given node to the outermost WebView of the nearest chain of nested
+     * WebViews containing it.
+     *
+     * @return a new node owned by the caller, or null if the node is not inside a WebView
+     */
+    @Nullable
+    public AccessibilityNodeInfo findWebViewRoot(AccessibilityNodeInfo node) {
+        AccessibilityNodeInfo webViewRoot = null;
+        AccessibilityNodeInfo current = AccessibilityNodeInfo.obtain(node);
+
+        for (int depth = 0; current != null && depth < MAX_ANCESTOR_DEPTH; depth++) {
+            boolean isWebView = isWebView(current.getClassName());
+            if (!isWebView && webViewRoot != null) {
+                // chain of WebViews ended
+                current.recycle();
+                return webViewRoot;
+            }
+
+            AccessibilityNodeInfo parent = current.getParent();
+            if (isWebView) {
+                if (webViewRoot != null) {
+                    webViewRoot.recycle();
+                }
+                webViewRoot = current;
+            } else {
+                current.recycle();
+            }
+            current = parent;
+        }
+
+        if (current != null && current != webViewRoot) {
+            current.recycle();
+        }
+        return webViewRoot;
+    }
+
+    /**
+     * Scans the subtree below root and adds all found messages to pgpNodes. The root node itself
+     * is not recycled.
+     * <p/>
+     * The traversal is bounded by {@link #MAX_DEPTH} and {@link #MAX_VISITED_NODES}, subtrees that
+     * cannot contain a WebView are skipped.
+     */
+    public void scan(AccessibilityNodeInfo root, List<DetectedMessage> pgpNodes) {
+        ArrayDeque<Frame> stack = new ArrayDeque<>();
+        // outermost WebViews of the visited chains, referenced by frames
+        ArrayList<AccessibilityNodeInfo> webViewRoots = new ArrayList<>();
+        int visited = 0;
+
+        try {
+            AccessibilityNodeInfo rootCopy = AccessibilityNodeInfo.obtain(root);
+            AccessibilityNodeInfo rootWebView = null;
+            if (isWebView(root.getClassName())) {
+                rootWebView = AccessibilityNodeInfo.obtain(root);
+                webViewRoots.add(rootWebView);
+            }
+            stack.push(new Frame(rootCopy, 0, rootWebView));
+
+            while (!stack.isEmpty()) {
+                Frame frame = stack.pop();
+                try {
+                    if (frame.mDepth >= MAX_DEPTH) {
+                        Log.w(Constants.TAG, "Scan depth limit reached, skipping subtree");
+                        continue;
+                    }
+
+                    int childCount = frame.mNode.getChildCount();
+                    for (int i = 0; i < childCount; i++) {
+                        if (++visited > MAX_VISITED_NODES) {
+                            Log.w(Constants.TAG, "Scan node limit reached, aborting scan");
+                            return;
+                        }
+
+                        AccessibilityNodeInfo child = frame.mNode.getChild(i);
+                        if (child == null) {
+                            continue;
+                        }
+                        boolean keepChild = false;
+                        try {
+                            keepChild = visitChild(frame, child, stack, webViewRoots, pgpNodes);
+                        } finally {
+                            if (!keepChild) {
+                                child.recycle();
+                            }
+                        }
+                    }
+                } finally {
+                    frame.mNode.recycle();
+                }
+            }
+        } finally {
+            for (Frame frame : stack) {
+                frame.mNode.recycle();
+            }
+            for (AccessibilityNodeInfo webViewRoot : webViewRoots) {
+                webViewRoot.recycle();
+            }
+        }
+    }
+
+    /**
+     * @return true if ownership of child has been taken, either as detected message or as frame
+     * pushed onto the stack
+     */
+    private boolean visitChild(Frame parent, AccessibilityNodeInfo child, ArrayDeque<Frame> stack,
+                               List<AccessibilityNodeInfo> webViewRoots,
+                               List<DetectedMessage> pgpNodes) {
+        CharSequence className = child.getClassName();
+
+        /*
+         WebView
+         |- WebView
+            |- View
+            |- View
+            |- View
+         */
+        if (parent.mWebViewRoot != null) {
+            if (VIEW_CLASS_NAME.equals(className)) {
+                CharSequence description = child.getContentDescription();
+                if (!TextUtils.isEmpty(description)) {
+                    DetectionCache.Key key = DetectionCache.Key.create(child, description);
+                    MessageDetector.Detection detection;
+                    if (mCache.isMatched(key)) {
+                        detection = mCache.getDetection(key);
+                    } else {
+                        detection = mDetector.detect(description);
+                        mCache.putResult(key, detection);
+                    }
+                    if (detection != null) {
+                        pgpNodes.add(new DetectedMessage(child,
+                                AccessibilityNodeInfo.obtain(parent.mWebViewRoot), key,
+                                detection));
+                        return true;
+                    }
+                }
+            }
+            // web content only contains more WebViews, never native views hosting one
+            if (!isWebView(className)) {
+                return false;
+            }
+            stack.push(new Frame(child, parent.mDepth + 1, parent.mWebViewRoot));
+            return true;
+        }
+
+        if (!canContainWebView(child, className)) {
+            return false;
+        }
+        AccessibilityNodeInfo webViewRoot = null;
+        if (isWebView(className)) {
+            webViewRoot = AccessibilityNodeInfo.obtain(child);
+            webViewRoots.add(webViewRoot);
+        }
+        stack.push(new Frame(child, parent.mDepth + 1, webViewRoot));
+        return true;
+    }
+
+    private static boolean canContainWebView(AccessibilityNodeInfo node, CharSequence className) {
+        if (className != null && LEAF_CLASS_NAMES.contains(className.toString())) {
+            return false;
+        }
+        return !isPruned(node);
+    }
+
+    /**
+     * @return true if the node's subtree never hosts a conversation, judged by its view id
+     */
+    public static boolean isPruned(AccessibilityNodeInfo node) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            String viewId = node.getViewIdResourceName();
+            if (viewId != null) {
+                int idStart = viewId.indexOf(":id/");
+                return idStart != -1 && PRUNED_VIEW_IDS.contains(viewId.substring(idStart + 4));
+            }
+        }
+        return false;
+    }
+
+    private static boolean isWebView(CharSequence className) {
+        return WEB_VIEW_CLASS_NAME.equals(className);
+    }
+
+    private static class Frame {
+        final AccessibilityNodeInfo mNode;
+        final int mDepth;
+        // outermost WebView of the chain mNode is part of, null if mNode is no WebView
+        final AccessibilityNodeInfo mWebViewRoot;
+
+        Frame(AccessibilityNodeInfo node, int depth, AccessibilityNodeInfo webViewRoot) {
+            mNode = node;
+            mDepth = depth;
+            mWebViewRoot = webViewRoot;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.os.Handler;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Plaintext of messages decrypted in this session by the digest of their armor, so a message
+ * shown again is not sent to OpenKeychain again.
+ * <p/>
+ * The total size of all plaintexts is bounded, least recently used ones are evicted first.
+ * Plaintext is only kept in byte arrays, which are overwritten with zeros when they are evicted.
+ * Everything is cleared if the cache has not been used for a while. Thread-safe.
+ */
+public class PlaintextCache {
+
+    // in access order, eldest first
+    private final LinkedHashMap<ByteBuffer, byte[]> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Handler mHandler;
+    private final long mMaxBytes;
+    private final long mTimeout;
+    private long mBytes;
+
+    private final Runnable mClear = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(Constants.TAG, "plaintext cache timed out");
+            clear();
+        }
+    };
+
+    /**
+     * @param handler runs the timeout
+     * @param timeout time without get or put after which everything is cleared
+     */
+    public PlaintextCache(Handler handler, long maxBytes, long timeout) {
+        mHandler = handler;
+        mMaxBytes = maxBytes;
+        mTimeout = timeout;
+    }
+
+    /**
+     * @return a copy of the plaintext, which should be zeroed by the caller, null if it is not
+     * cached
+     */
+    @Nullable
+    public synchronized byte[] get(byte[] digest) {
+        byte[] plaintext = mEntries.get(ByteBuffer.wrap(digest));
+        if (plaintext == null) {
+            return null;
+        }
+        restartTimeout();
+        return plaintext.clone();
+    }
+
+    public synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * Stores a copy of the plaintext and evicts the least recently used ones above the limit.
+     */
+    public synchronized void put(byte[] digest, byte[] plaintext) {
+        if (plaintext.length > mMaxBytes) {
+            return;
+        }
+        byte[] replaced = mEntries.put(ByteBuffer.wrap(digest.clone()), plaintext.clone());
+        if (replaced != null) {
+            mBytes -= replaced.length;
+            Arrays.fill(replaced, (byte) 0);
+        }
+        mBytes += plaintext.length;
+
+        Iterator<byte[]> it = mEntries.values().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            byte[] eldest = it.next();
+            it.remove();
+            mBytes -= eldest.length;
+            Arrays.fill(eldest, (byte) 0);
+        }
+        restartTimeout();
+    }
+
+    /**
+     * Zeroes and removes all plaintexts.
+     */
+    public synchronized void clear() {
+        for (byte[] plaintext : mEntries.values()) {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+        mEntries.clear();
+        mBytes = 0;
+        mHandler.removeCallbacks(mClear);
+    }
+
+    private void restartTimeout() {
+        mHandler.removeCallbacks(mClear);
+        mHandler.postDelayed(mClear, mTimeout);
+    }
+}
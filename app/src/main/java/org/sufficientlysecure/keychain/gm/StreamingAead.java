@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import android.os.Build;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Chunked AES-GCM encryption of a file, so it can be decrypted from any segment on without
+ * reading the segments before.
+ * <p/>
+ * Plaintext is split into segments of {@link #SEGMENT_SIZE} bytes, each one is encrypted and
+ * authenticated on its own. The nonce of a segment consists of a random prefix, the segment index
+ * and a flag marking the last segment, so segments can neither be reordered nor cut off. Key and
+ * nonce prefix are only kept in memory.
+ */
+public class StreamingAead {
+
+    public static final int SEGMENT_SIZE = 64 * 1024;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_LENGTH = 16;
+    private static final int NONCE_LENGTH = 12;
+    private static final int NONCE_PREFIX_LENGTH = 7;
+    private static final int TAG_LENGTH = 16;
+    private static final int CIPHERTEXT_SEGMENT_SIZE = SEGMENT_SIZE + TAG_LENGTH;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKeySpec mKey;
+    private final byte[] mNoncePrefix;
+
+    private StreamingAead(byte[] key, byte[] noncePrefix) {
+        mKey = new SecretKeySpec(key, "AES");
+        mNoncePrefix = noncePrefix;
+    }
+
+    /**
+     * @return a new instance with random key and nonce prefix
+     */
+    public static StreamingAead generate() {
+        byte[] key = new byte[KEY_LENGTH];
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(key);
+        RANDOM.nextBytes(noncePrefix);
+        return new StreamingAead(key, noncePrefix);
+    }
+
+    /**
+     * @return number of plaintext bytes stored in a file of this length
+     */
+    public static long getPlaintextLength(long ciphertextLength) {
+        long segments = (ciphertextLength + CIPHERTEXT_SEGMENT_SIZE - 1) / CIPHERTEXT_SEGMENT_SIZE;
+        return Math.max(0, ciphertextLength - segments * TAG_LENGTH);
+    }
+
+    /**
+     * @return stream encrypting into out, the last segment is written when it is closed
+     */
+    public OutputStream newEncryptingStream(OutputStream out) throws IOException {
+        return new EncryptingOutputStream(out, newCipher());
+    }
+
+    /**
+     * Decrypts a range of the plaintext into out, starting at the segment containing offset.
+     *
+     * @param length number of bytes, -1 to decrypt until the end
+     * @throws IOException if a segment has been modified, reordered or cut off
+     */
+    public void decrypt(FileChannel channel, long offset, long length, OutputStream out)
+            throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            // nothing has been written yet
+            return;
+        }
+        long segments = (size + CIPHERTEXT_SEGMENT_SIZE - 1) / CIPHERTEXT_SEGMENT_SIZE;
+        long segment = offset / SEGMENT_SIZE;
+        int skip = (int) (offset % SEGMENT_SIZE);
+
+        Cipher cipher = newCipher();
+        ByteBuffer ciphertext = ByteBuffer.allocate(CIPHERTEXT_SEGMENT_SIZE);
+        byte[] plaintext = new byte[CIPHERTEXT_SEGMENT_SIZE];
+        while (segment < segments && length != 0) {
+            long position = segment * CIPHERTEXT_SEGMENT_SIZE;
+            ciphertext.clear();
+            ciphertext.limit((int) Math.min(CIPHERTEXT_SEGMENT_SIZE, size - position));
+            while (ciphertext.hasRemaining()) {
+                if (channel.read(ciphertext, position + ciphertext.position()) < 0) {
+                    throw new EOFException("file has been cut off");
+                }
+            }
+
+            int count;
+            try {
+                initCipher(cipher, Cipher.DECRYPT_MODE, segment, segment == segments - 1);
+                count = cipher.doFinal(ciphertext.array(), 0, ciphertext.limit(), plaintext, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("segment " + segment + " cannot be authenticated", e);
+            }
+            count -= skip;
+            if (length >= 0 && count > length) {
+                count = (int) length;
+            }
+            if (count > 0) {
+                out.write(plaintext, skip, count);
+                if (length >= 0) {
+                    length -= count;
+                }
+            }
+            skip = 0;
+            segment++;
+        }
+    }
+
+    private Cipher newCipher() throws IOException {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM is not available", e);
+        }
+    }
+
+    private void initCipher(Cipher cipher, int mode, long segment, boolean last)
+            throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(mNoncePrefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[NONCE_PREFIX_LENGTH] = (byte) (segment >>> 24);
+        nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (segment >>> 16);
+        nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (segment >>> 8);
+        nonce[NONCE_PREFIX_LENGTH + 3] = (byte) segment;
+        nonce[NONCE_LENGTH - 1] = (byte) (last ? 1 : 0);
+
+        AlgorithmParameterSpec spec;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            spec = new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+        } else {
+            // older providers only take an IV and always use 128 bit tags
+            spec = new IvParameterSpec(nonce);
+        }
+        cipher.init(mode, mKey, spec);
+    }
+
+    private class EncryptingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final Cipher mCipher;
+        private final byte[] mBuffer = new byte[SEGMENT_SIZE];
+        private final byte[] mSegment = new byte[CIPHERTEXT_SEGMENT_SIZE];
+        private int mCount;
+        private long mSegmentIndex;
+        private boolean mClosed;
+
+        EncryptingOutputStream(OutputStream out, Cipher cipher) {
+            mOut = out;
+            mCipher = cipher;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                // a full segment is only written once more data follows, the last one is
+                // written on close
+                if (mCount == SEGMENT_SIZE) {
+                    writeSegment(false);
+                }
+                int count = Math.min(len, SEGMENT_SIZE - mCount);
+                System.arraycopy(b, off, mBuffer, mCount, count);
+                mCount += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // incomplete segments cannot be written
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                writeSegment(true);
+            } finally {
+                mOut.close();
+            }
+        }
+
+        private void writeSegment(boolean last) throws IOException {
+            int count;
+            try {
+                initCipher(mCipher, Cipher.ENCRYPT_MODE, mSegmentIndex, last);
+                count = mCipher.doFinal(mBuffer, 0, mCount, mSegment, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("encrypting segment " + mSegmentIndex + " failed", e);
+            }
+            mOut.write(mSegment, 0, count);
+            mSegmentIndex++;
+            mCount = 0;
+        }
+    }
+}
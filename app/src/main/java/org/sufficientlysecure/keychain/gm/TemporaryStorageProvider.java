@@ -21,20 +21,57 @@ package org.sufficientlysecure.keychain.gm;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.provider.OpenableColumns;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TemporaryStorageProvider stores decrypted files inside the app's cache directory previously to
@@ -54,6 +91,36 @@ import java.util.UUID;
  * - http://stackoverflow.com/q/24467696
  * - http://stackoverflow.com/q/18249007
  * - Comments at http://www.blogc.at/2014/03/23/share-private-files-with-other-apps-fileprovider/
+ * <p/>
+ * In-memory entries created by {@link #createPipe(PipeWriter)} are streamed through a pipe instead,
+ * they have neither a file nor a database row.
+ * <p/>
+ * Performance:
+ * Metadata of all files is kept in memory, loaded once in onCreate. query, getType and
+ * getStreamTypes are answered from memory, inserts, updates and deletes are persisted write-behind
+ * in batched transactions. Pending writes are flushed before selections are evaluated by SQLite.
+ * Ids and empty files for inserts are created in advance, insert only moves one out of the pool.
+ * bulkInsert and applyBatch persist all their rows in a single transaction, files matched by a
+ * selection are deleted in parallel.
+ * <p/>
+ * Encryption:
+ * With {@link Constants#TEMPSTORAGE_ENCRYPT}, files are stored encrypted by {@link StreamingAead}
+ * with a key only kept in memory. Files are then read and written through pipes, decrypted
+ * respectively encrypted by a pump thread, and files of a previous process are deleted.
+ * <p/>
+ * Deduplication:
+ * With {@link Constants#TEMPSTORAGE_DEDUPLICATE}, a SHA-256 of content written with "w" or "wt" is
+ * computed when the file is closed, before KitKat while it is written through a pipe, which cannot
+ * seek. Entries with the same content share one reference counted file, while each entry keeps
+ * its own random id. Reads wait until a running write has been committed. Callers knowing the
+ * hash in advance use {@link #createFile(Context, byte[])} and skip writing if
+ * {@link #hasContent(Uri)}. An entry gets a file of its own again before it is modified.
+ * <p/>
+ * Eviction:
+ * A background sweep periodically deletes files older than {@link Constants#TEMPFILE_TTL} and,
+ * while the files exceed {@link Constants#TEMPFILE_MAX_BYTES}, the oldest ones. It walks an
+ * in-memory index ordered by time and deletes in bounded batches, one transaction each. The total
+ * size is kept up to date by every write and delete, shared files are counted once.
  */
 public class TemporaryStorageProvider extends ContentProvider {
 
@@ -63,12 +130,204 @@ public class TemporaryStorageProvider extends ContentProvider {
     private static final String COLUMN_NAME = "name";
     private static final String COLUMN_TIME = "time";
     private static final String COLUMN_TYPE = "mimetype";
+    private static final String COLUMN_SIZE = "size";
+    private static final String COLUMN_HASH = "hash";
+    private static final String COLUMN_BLOB = "blob";
+    private static final String INDEX_TIME = "files_time_index";
     public static final String AUTHORITY = Constants.TEMPSTORAGE_AUTHORITY;
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
-    private static final int DB_VERSION = 3;
+    private static final int DB_VERSION = 5;
+
+    // maximum number of files deleted in one transaction by the eviction sweep
+    private static final int SWEEP_BATCH_SIZE = 64;
+    private static final long SWEEP_INITIAL_DELAY = 60 * 1000; // 1 minute
+
+    // files deleted by one thread, larger deletes are spread over several threads
+    private static final int DELETE_CHUNK_SIZE = 32;
+    // SQLite allows at most 999 variables per statement
+    private static final int MAX_IDS_PER_DELETE = 500;
+
+    // maximum time a read waits for a running write to be committed
+    private static final long WRITE_WAIT_TIMEOUT = 60 * 1000; // 1 minute
+    private static final int PUMP_BUFFER_SIZE = 8192;
+
+    public static final String HASH_ALGORITHM = "SHA-256";
+
+    // number of ids with already created files kept ready for insert
+    private static final int POOL_SIZE = 4;
+    private static final String POOL_DIR = "temp/.pool";
+
+    // query parameters of openAssetFile to read a part of a file only
+    public static final String PARAM_OFFSET = "offset";
+    public static final String PARAM_LENGTH = "length";
 
     private static File cacheDir;
 
+    // in-memory entries, only valid inside this process
+    private static final ConcurrentHashMap<String, PipeEntry> pipes = new ConcurrentHashMap<>();
+    // feed in-memory entries and encrypted files into pipes and back
+    private static final ExecutorService pipePumps = Executors.newCachedThreadPool();
+
+    // metadata of all files, the database only persists it
+    private static final ConcurrentHashMap<String, FileEntry> files = new ConcurrentHashMap<>();
+    // same entries, oldest first
+    private static final ConcurrentSkipListSet<FileEntry> timeIndex =
+            new ConcurrentSkipListSet<>(new Comparator<FileEntry>() {
+                @Override
+                public int compare(FileEntry lhs, FileEntry rhs) {
+                    if (lhs.mTime != rhs.mTime) {
+                        return lhs.mTime < rhs.mTime ? -1 : 1;
+                    }
+                    return lhs.mId.compareTo(rhs.mId);
+                }
+            });
+    // files shared by entries with the same content, by hash, guarded by itself
+    private static final HashMap<String, Blob> blobs = new HashMap<>();
+    // size of each file inside temp/ by name, so shared files are counted once, guarded by blobs
+    private static final HashMap<String, Long> fileBytes = new HashMap<>();
+    // sum of fileBytes
+    private static final AtomicLong storedBytes = new AtomicLong();
+    // entries whose size is unknown, e.g. while being written, measured by the sweep
+    private static final Set<FileEntry> unsized =
+            Collections.newSetFromMap(new ConcurrentHashMap<FileEntry, Boolean>());
+    private static final ConcurrentLinkedQueue<PendingWrite> pendingWrites =
+            new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // number of running bulk operations, which flush their writes themselves
+    private static final AtomicInteger batchDepth = new AtomicInteger();
+    private static final ExecutorService fileDeleters = Executors.newCachedThreadPool();
+    // ids whose empty files exist in POOL_DIR
+    private static final ConcurrentLinkedQueue<String> idPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean refillScheduled = new AtomicBoolean();
+    // receives close events of files opened for writing
+    private static Handler closeHandler;
+    // applies pending writes and runs the eviction sweep
+    private static final ScheduledExecutorService dbWriter =
+            Executors.newSingleThreadScheduledExecutor();
+    private static final Object flushLock = new Object();
+
+    private static class FileEntry {
+        final String mId;
+        final String mName;
+        final long mTime;
+        volatile String mMimeType;
+        // -1 if unknown, the file is asked instead
+        volatile long mSize = -1;
+        // null if files are not encrypted or the key has been lost with a previous process
+        volatile StreamingAead mAead;
+        // counted down when the current write has been committed
+        volatile CountDownLatch mWritten;
+        // name of the file inside temp/, shared with other entries if mHash is set
+        volatile String mBlob;
+        // null if the content is not registered in blobs
+        volatile String mHash;
+
+        FileEntry(String id, String name, String mimeType, long time) {
+            mId = id;
+            mName = name;
+            mMimeType = mimeType;
+            mTime = time;
+            mBlob = id;
+        }
+    }
+
+    private static class Blob {
+        final String mName;
+        final StreamingAead mAead;
+        final long mSize;
+        // number of entries using this file
+        int mRefs = 1;
+
+        Blob(String name, StreamingAead aead, long size) {
+            mName = name;
+            mAead = aead;
+            mSize = size;
+        }
+    }
+
+    private static class PendingWrite {
+        static final int INSERT = 0;
+        static final int UPDATE = 1;
+        static final int DELETE = 2;
+
+        final int mOperation;
+        final String mId;
+        final ContentValues mValues;
+
+        PendingWrite(int operation, String id, ContentValues values) {
+            mOperation = operation;
+            mId = id;
+            mValues = values;
+        }
+
+        void apply(SQLiteDatabase database) {
+            switch (mOperation) {
+                case INSERT:
+                    database.insert(TABLE_FILES, null, mValues);
+                    break;
+                case UPDATE:
+                    database.update(TABLE_FILES, mValues, COLUMN_ID + "=?", new String[]{mId});
+                    break;
+                case DELETE:
+                    database.delete(TABLE_FILES, COLUMN_ID + "=?", new String[]{mId});
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Writes the content of an in-memory entry into the pipe returned by openFile.
+     */
+    public interface PipeWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static class PipeEntry {
+        final PipeWriter mWriter;
+        final long mTime;
+
+        PipeEntry(PipeWriter writer, long time) {
+            mWriter = writer;
+            mTime = time;
+        }
+
+        boolean isExpired(long now) {
+            return now - mTime > Constants.TEMPPIPE_TTL;
+        }
+    }
+
+    /**
+     * Creates an in-memory entry, every openFile streams it through a new pipe fed by writer.
+     * Nothing is written to disk, the entry expires after {@link Constants#TEMPPIPE_TTL}.
+     * <p/>
+     * Only works for callers in the same process as this provider.
+     */
+    public static Uri createPipe(PipeWriter writer) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, PipeEntry>> it = pipes.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().isExpired(now)) {
+                it.remove();
+            }
+        }
+
+        String uuid = UUID.randomUUID().toString();
+        pipes.put(uuid, new PipeEntry(writer, now));
+        return Uri.withAppendedPath(CONTENT_URI, uuid);
+    }
+
+    private static PipeEntry getPipe(String id) {
+        if (id == null) {
+            return null;
+        }
+        PipeEntry pipe = pipes.get(id);
+        if (pipe != null && pipe.isExpired(System.currentTimeMillis())) {
+            pipes.remove(id);
+            return null;
+        }
+        return pipe;
+    }
+
     public static Uri createFile(Context context, String targetName, String mimeType) {
         ContentValues contentValues = new ContentValues();
         contentValues.put(COLUMN_NAME, targetName);
@@ -87,21 +346,88 @@ public class TemporaryStorageProvider extends ContentProvider {
         return context.getContentResolver().insert(CONTENT_URI, contentValues);
     }
 
+    /**
+     * Creates a file for content with the given {@link #HASH_ALGORITHM} digest. If the same content
+     * is already stored, the new entry shares it and {@link #hasContent(Uri)} returns true.
+     */
+    public static Uri createFile(Context context, byte[] hash) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(COLUMN_HASH, toHex(hash));
+        return context.getContentResolver().insert(CONTENT_URI, contentValues);
+    }
+
+    /**
+     * @return true if the file already has content and does not need to be written, only works
+     * for callers in the same process as this provider
+     */
+    public static boolean hasContent(Uri uri) {
+        FileEntry entry = files.get(uri.getLastPathSegment());
+        return entry != null && entry.mHash != null;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
     public static int setMimeType(Context context, Uri uri, String mimetype) {
         ContentValues values = new ContentValues();
         values.put(COLUMN_TYPE, mimetype);
         return context.getContentResolver().update(uri, values, null, null);
     }
 
+    /**
+     * Records the size of a file after it has been written, so queries do not need to ask the
+     * file system.
+     */
+    public static int setSize(Context context, Uri uri, long size) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_SIZE, size);
+        return context.getContentResolver().update(uri, values, null, null);
+    }
+
     public static int cleanUp(Context context) {
+        return deleteOlderThan(context, System.currentTimeMillis() - Constants.TEMPFILE_TTL);
+    }
+
+    /**
+     * Deletes all files created before time, in a single call.
+     */
+    public static int deleteOlderThan(Context context, long time) {
         return context.getContentResolver().delete(CONTENT_URI, COLUMN_TIME + "< ?",
-                new String[]{Long.toString(System.currentTimeMillis() - Constants.TEMPFILE_TTL)});
+                new String[]{Long.toString(time)});
+    }
+
+    /**
+     * Deletes all given files with one call per {@value #MAX_IDS_PER_DELETE} files.
+     */
+    public static int delete(Context context, List<Uri> uris) {
+        int deleted = 0;
+        for (int start = 0; start < uris.size(); start += MAX_IDS_PER_DELETE) {
+            List<Uri> chunk = uris.subList(start, Math.min(uris.size(), start + MAX_IDS_PER_DELETE));
+            StringBuilder selection = new StringBuilder(COLUMN_ID).append(" IN (");
+            String[] selectionArgs = new String[chunk.size()];
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[i] = chunk.get(i).getLastPathSegment();
+            }
+            selection.append(')');
+            deleted += context.getContentResolver().delete(CONTENT_URI, selection.toString(),
+                    selectionArgs);
+        }
+        return deleted;
     }
 
     private class TemporaryStorageDatabase extends SQLiteOpenHelper {
 
         public TemporaryStorageDatabase(Context context) {
             super(context, DB_NAME, null, DB_VERSION);
+            // write-behind flushes do not block readers
+            setWriteAheadLoggingEnabled(true);
         }
 
         @Override
@@ -110,8 +436,18 @@ public class TemporaryStorageProvider extends ContentProvider {
                     COLUMN_ID + " TEXT PRIMARY KEY, " +
                     COLUMN_NAME + " TEXT, " +
                     COLUMN_TYPE + " TEXT, " +
-                    COLUMN_TIME + " INTEGER" +
+                    COLUMN_TIME + " INTEGER, " +
+                    COLUMN_SIZE + " INTEGER, " +
+                    COLUMN_HASH + " TEXT, " +
+                    COLUMN_BLOB + " TEXT" +
                     ");");
+            createTimeIndex(db);
+        }
+
+        private void createTimeIndex(SQLiteDatabase db) {
+            // cleanUp() and eviction select by time
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_TIME + " ON " + TABLE_FILES +
+                    " (" + COLUMN_TIME + ");");
         }
 
         @Override
@@ -128,29 +464,430 @@ public class TemporaryStorageProvider extends ContentProvider {
                             ");");
                 case 2:
                     db.execSQL("ALTER TABLE files ADD COLUMN " + COLUMN_TYPE + " TEXT");
+                case 3:
+                    db.execSQL("ALTER TABLE files ADD COLUMN " + COLUMN_SIZE + " INTEGER");
+                    createTimeIndex(db);
+                case 4:
+                    db.execSQL("ALTER TABLE files ADD COLUMN " + COLUMN_HASH + " TEXT");
+                    db.execSQL("ALTER TABLE files ADD COLUMN " + COLUMN_BLOB + " TEXT");
             }
         }
     }
 
     private static TemporaryStorageDatabase db;
 
-    private File getFile(Uri uri) throws FileNotFoundException {
-        try {
-            return getFile(uri.getLastPathSegment());
-        } catch (NumberFormatException e) {
-            throw new FileNotFoundException();
+    private static File getFile(String name) {
+        return new File(cacheDir, "temp/" + name);
+    }
+
+    private static File getFile(FileEntry entry) {
+        return getFile(entry.mBlob);
+    }
+
+    /**
+     * Drops the entry's reference to its file.
+     *
+     * @return the file to delete, null if it is still used by other entries
+     */
+    private static File releaseFile(FileEntry entry) {
+        synchronized (blobs) {
+            String blobName = entry.mBlob;
+            Blob blob = entry.mHash != null ? blobs.get(entry.mHash) : null;
+            if (blob != null && blob.mName.equals(blobName)) {
+                if (--blob.mRefs > 0) {
+                    return null;
+                }
+                blobs.remove(entry.mHash);
+            }
+            forgetBytes(blobName);
+            return getFile(blobName);
         }
     }
 
-    private File getFile(String id) {
-        return new File(cacheDir, "temp/" + id);
+    /**
+     * Records the size of a file, must be called while holding the lock on blobs.
+     */
+    private static void recordBytes(String name, long bytes) {
+        Long previous = fileBytes.put(name, bytes);
+        storedBytes.addAndGet(bytes - (previous != null ? previous : 0));
+    }
+
+    /**
+     * Must be called while holding the lock on blobs.
+     */
+    private static void forgetBytes(String name) {
+        Long previous = fileBytes.remove(name);
+        if (previous != null) {
+            storedBytes.addAndGet(-previous);
+        }
+    }
+
+    /**
+     * Marks the entry's size as unknown until it is recorded again.
+     */
+    private static void startWrite(FileEntry entry) {
+        entry.mSize = -1;
+        unsized.add(entry);
+    }
+
+    /**
+     * Records the size of the entry's file, unless it has been deleted meanwhile. Must be called
+     * while holding the lock on blobs.
+     *
+     * @return false if the entry has been deleted
+     */
+    private static boolean recordSize(FileEntry entry, long size) {
+        if (files.get(entry.mId) != entry) {
+            return false;
+        }
+        entry.mSize = size;
+        unsized.remove(entry);
+        recordBytes(entry.mBlob, size);
+        return true;
     }
 
     @Override
     public boolean onCreate() {
         db = new TemporaryStorageDatabase(getContext());
         cacheDir = getContext().getCacheDir();
-        return new File(cacheDir, "temp").mkdirs();
+        loadIndex();
+        if (Constants.TEMPSTORAGE_ENCRYPT) {
+            dbWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    purgeUnreadable();
+                }
+            });
+        }
+        dbWriter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (RuntimeException e) {
+                    // an exception would cancel all further sweeps
+                    Log.e(Constants.TAG, "Sweeping temporary files failed!", e);
+                }
+            }
+        }, SWEEP_INITIAL_DELAY, Constants.TEMPFILE_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        boolean created = new File(cacheDir, "temp").mkdirs();
+
+        // files left in the pool by a previous process have never been handed out
+        File poolDir = new File(cacheDir, POOL_DIR);
+        File[] orphans = poolDir.listFiles();
+        if (orphans != null) {
+            for (File orphan : orphans) {
+                orphan.delete();
+            }
+        }
+        poolDir.mkdirs();
+        idPool.clear();
+        // also seeds SecureRandom before the first insert
+        scheduleRefill();
+        return created;
+    }
+
+    /**
+     * @return a new id whose empty file has been created, null if the pool is empty
+     */
+    private static String popPooledId() {
+        String id = idPool.poll();
+        scheduleRefill();
+        if (id == null) {
+            return null;
+        }
+        if (!new File(cacheDir, POOL_DIR + "/" + id).renameTo(getFile(id))) {
+            Log.e(Constants.TAG, "Taking file from pool failed!");
+            return null;
+        }
+        return id;
+    }
+
+    private static void scheduleRefill() {
+        if (idPool.size() >= POOL_SIZE || !refillScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        dbWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (idPool.size() < POOL_SIZE) {
+                        String id = UUID.randomUUID().toString();
+                        if (!new File(cacheDir, POOL_DIR + "/" + id).createNewFile()) {
+                            break;
+                        }
+                        idPool.add(id);
+                    }
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "Refilling file pool failed!", e);
+                } finally {
+                    refillScheduled.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes encrypted files whose keys have been lost with a previous process.
+     */
+    private static void purgeUnreadable() {
+        ArrayList<FileEntry> batch = new ArrayList<>(SWEEP_BATCH_SIZE);
+        for (FileEntry entry : timeIndex) {
+            if (entry.mAead == null) {
+                batch.add(entry);
+            }
+            if (batch.size() == SWEEP_BATCH_SIZE) {
+                evict(batch);
+                batch.clear();
+            }
+        }
+        evict(batch);
+    }
+
+    private static void putEntry(FileEntry entry) {
+        files.put(entry.mId, entry);
+        timeIndex.add(entry);
+    }
+
+    private static FileEntry removeEntry(String id) {
+        FileEntry entry = files.remove(id);
+        if (entry != null) {
+            timeIndex.remove(entry);
+            unsized.remove(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Asks the file system for the size of files whose size is unknown, e.g. written through a
+     * file descriptor without close listener.
+     */
+    private static void measureUnsized() {
+        for (FileEntry entry : unsized) {
+            File file;
+            synchronized (blobs) {
+                if (files.get(entry.mId) != entry) {
+                    unsized.remove(entry);
+                    continue;
+                }
+                file = getFile(entry);
+            }
+            long length = file.length();
+            synchronized (blobs) {
+                // still written, measured again by the next sweep
+                if (files.get(entry.mId) == entry && entry.mSize == -1) {
+                    recordBytes(entry.mBlob, length);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return bytes freed by deleting the entry, 0 if its file is shared
+     */
+    private static long getFreedBytes(FileEntry entry) {
+        synchronized (blobs) {
+            Blob blob = entry.mHash != null ? blobs.get(entry.mHash) : null;
+            if (blob != null && blob.mRefs > 1) {
+                return 0;
+            }
+            Long bytes = fileBytes.get(entry.mBlob);
+            return bytes != null ? bytes : 0;
+        }
+    }
+
+    /**
+     * Deletes expired files, afterwards the oldest files while exceeding the size limit.
+     */
+    private static void sweep() {
+        long cutoff = System.currentTimeMillis() - Constants.TEMPFILE_TTL;
+        ArrayList<FileEntry> batch = new ArrayList<>(SWEEP_BATCH_SIZE);
+        do {
+            batch.clear();
+            for (FileEntry entry : timeIndex) {
+                if (entry.mTime >= cutoff || batch.size() == SWEEP_BATCH_SIZE) {
+                    break;
+                }
+                batch.add(entry);
+            }
+            evict(batch);
+        } while (batch.size() == SWEEP_BATCH_SIZE);
+
+        measureUnsized();
+        while (storedBytes.get() > Constants.TEMPFILE_MAX_BYTES && !timeIndex.isEmpty()) {
+            batch.clear();
+            long excess = storedBytes.get() - Constants.TEMPFILE_MAX_BYTES;
+            for (FileEntry entry : timeIndex) {
+                if (excess <= 0 || batch.size() == SWEEP_BATCH_SIZE) {
+                    break;
+                }
+                excess -= getFreedBytes(entry);
+                batch.add(entry);
+            }
+            evict(batch);
+        }
+    }
+
+    private static void evict(List<FileEntry> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Log.d(Constants.TAG, "Evicting " + batch.size() + " temporary files");
+        ArrayList<File> unused = new ArrayList<>(batch.size());
+        for (FileEntry entry : batch) {
+            if (removeEntry(entry.mId) == entry) {
+                File file = releaseFile(entry);
+                if (file != null) {
+                    unused.add(file);
+                }
+            }
+            pendingWrites.add(new PendingWrite(PendingWrite.DELETE, entry.mId, null));
+        }
+        deleteFiles(unused);
+        // deletes of this batch share a single transaction
+        flushPendingWrites();
+    }
+
+    private static void loadIndex() {
+        files.clear();
+        timeIndex.clear();
+        unsized.clear();
+        synchronized (blobs) {
+            blobs.clear();
+            fileBytes.clear();
+            storedBytes.set(0);
+        }
+        Cursor cursor = db.getReadableDatabase().query(TABLE_FILES,
+                new String[]{COLUMN_ID, COLUMN_NAME, COLUMN_TYPE, COLUMN_TIME, COLUMN_SIZE,
+                        COLUMN_HASH, COLUMN_BLOB},
+                null, null, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                FileEntry entry = new FileEntry(cursor.getString(0), cursor.getString(1),
+                        cursor.getString(2), cursor.getLong(3));
+                if (!cursor.isNull(4)) {
+                    entry.mSize = cursor.getLong(4);
+                }
+                if (!cursor.isNull(6)) {
+                    entry.mBlob = cursor.getString(6);
+                }
+                if (!cursor.isNull(5)) {
+                    shareLoaded(entry, cursor.getString(5));
+                }
+                putEntry(entry);
+                if (entry.mSize != -1) {
+                    synchronized (blobs) {
+                        recordBytes(entry.mBlob, entry.mSize);
+                    }
+                } else {
+                    unsized.add(entry);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Rebuilds the reference count of a loaded entry's file.
+     */
+    private static void shareLoaded(FileEntry entry, String hash) {
+        synchronized (blobs) {
+            Blob blob = blobs.get(hash);
+            if (blob == null) {
+                blobs.put(hash, new Blob(entry.mBlob, null, entry.mSize));
+                entry.mHash = hash;
+            } else if (blob.mName.equals(entry.mBlob)) {
+                blob.mRefs++;
+                entry.mHash = hash;
+            }
+        }
+    }
+
+    private static void enqueueWrite(PendingWrite write) {
+        pendingWrites.add(write);
+        if (batchDepth.get() > 0) {
+            // flushed when the bulk operation ends
+            return;
+        }
+        // writes queued while a flush is scheduled are part of its transaction
+        if (flushScheduled.compareAndSet(false, true)) {
+            dbWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled.set(false);
+                    flushPendingWrites();
+                }
+            });
+        }
+    }
+
+    private static void beginBatch() {
+        batchDepth.incrementAndGet();
+    }
+
+    private static void endBatch() {
+        if (batchDepth.decrementAndGet() == 0) {
+            flushPendingWrites();
+        }
+    }
+
+    /**
+     * Deletes these files, spread over several threads for many files.
+     */
+    private static void deleteFiles(List<File> unused) {
+        if (unused.size() <= DELETE_CHUNK_SIZE) {
+            for (File file : unused) {
+                file.delete();
+            }
+            return;
+        }
+        ArrayList<Future<Void>> futures = new ArrayList<>();
+        for (int start = 0; start < unused.size(); start += DELETE_CHUNK_SIZE) {
+            final List<File> chunk =
+                    unused.subList(start, Math.min(unused.size(), start + DELETE_CHUNK_SIZE));
+            futures.add(fileDeleters.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (File file : chunk) {
+                        file.delete();
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.e(Constants.TAG, "Deleting files failed!", e);
+            }
+        }
+    }
+
+    /**
+     * Persists all pending writes in a single transaction.
+     */
+    private static void flushPendingWrites() {
+        synchronized (flushLock) {
+            if (pendingWrites.isEmpty()) {
+                return;
+            }
+            SQLiteDatabase database = db.getWritableDatabase();
+            database.beginTransaction();
+            try {
+                PendingWrite write;
+                while ((write = pendingWrites.poll()) != null) {
+                    write.apply(database);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
     }
 
     @Override
@@ -161,50 +898,42 @@ public class TemporaryStorageProvider extends ContentProvider {
 
         Log.d(Constants.TAG, "being asked for file " + uri);
 
-        File file;
-        try {
-            file = getFile(uri);
-        } catch (FileNotFoundException e) {
-            Log.e(Constants.TAG, "file not found!");
-            return null;
+        if (getPipe(uri.getLastPathSegment()) != null) {
+            // size is unknown until the pipe has been read
+            MatrixCursor cursor = new MatrixCursor(new String[]{
+                    OpenableColumns.DISPLAY_NAME,
+                    OpenableColumns.SIZE
+            });
+            cursor.newRow()
+                    .add(null)
+                    .add(null);
+            return cursor;
         }
 
-        Cursor fileName = db.getReadableDatabase().query(TABLE_FILES, new String[]{COLUMN_NAME}, COLUMN_ID + "=?",
-                new String[]{uri.getLastPathSegment()}, null, null, null);
-        if (fileName != null) {
-            if (fileName.moveToNext()) {
-                MatrixCursor cursor = new MatrixCursor(new String[]{
-                        OpenableColumns.DISPLAY_NAME,
-                        OpenableColumns.SIZE,
-                        "_data"
-                });
-                cursor.newRow()
-                        .add(fileName.getString(0))
-                        .add(file.length())
-                        .add(file.getAbsolutePath());
-                fileName.close();
-                return cursor;
-            }
-            fileName.close();
+        FileEntry entry = files.get(uri.getLastPathSegment());
+        if (entry == null) {
+            return null;
         }
-        return null;
+        File file = getFile(entry);
+
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                OpenableColumns.DISPLAY_NAME,
+                OpenableColumns.SIZE,
+                "_data"
+        });
+        cursor.newRow()
+                .add(entry.mName)
+                .add(entry.mSize != -1 ? entry.mSize : getPlaintextLength(file))
+                // ciphertext is useless for readers
+                .add(Constants.TEMPSTORAGE_ENCRYPT ? null : file.getAbsolutePath());
+        return cursor;
     }
 
     @Override
     public String getType(Uri uri) {
-        Cursor cursor = db.getReadableDatabase().query(TABLE_FILES,
-                new String[]{COLUMN_TYPE}, COLUMN_ID + "=?",
-                new String[]{uri.getLastPathSegment()}, null, null, null);
-        if (cursor != null) {
-            try {
-                if (cursor.moveToNext()) {
-                    if (!cursor.isNull(0)) {
-                        return cursor.getString(0);
-                    }
-                }
-            } finally {
-                cursor.close();
-            }
+        FileEntry entry = files.get(uri.getLastPathSegment());
+        if (entry != null && entry.mMimeType != null) {
+            return entry.mMimeType;
         }
         return "application/octet-stream";
     }
@@ -223,59 +952,637 @@ public class TemporaryStorageProvider extends ContentProvider {
         if (!values.containsKey(COLUMN_TIME)) {
             values.put(COLUMN_TIME, System.currentTimeMillis());
         }
-        String uuid = UUID.randomUUID().toString();
+        // content of a known hash may already be stored
+        String hash = values.getAsString(COLUMN_HASH);
+        values.remove(COLUMN_HASH);
+        values.remove(COLUMN_BLOB);
+        if (hash != null && Constants.TEMPSTORAGE_DEDUPLICATE) {
+            synchronized (blobs) {
+                Blob blob = blobs.get(hash);
+                if (blob != null && (blob.mAead != null || !Constants.TEMPSTORAGE_ENCRYPT)) {
+                    // a fresh id keeps the uri unguessable, no file is needed
+                    String uuid = UUID.randomUUID().toString();
+                    values.put(COLUMN_ID, uuid);
+                    values.put(COLUMN_HASH, hash);
+                    values.put(COLUMN_BLOB, blob.mName);
+                    values.put(COLUMN_SIZE, blob.mSize);
+                    FileEntry entry = new FileEntry(uuid, values.getAsString(COLUMN_NAME),
+                            values.getAsString(COLUMN_TYPE), values.getAsLong(COLUMN_TIME));
+                    entry.mBlob = blob.mName;
+                    entry.mHash = hash;
+                    entry.mAead = blob.mAead;
+                    entry.mSize = blob.mSize;
+                    blob.mRefs++;
+                    putEntry(entry);
+                    enqueueWrite(new PendingWrite(PendingWrite.INSERT, uuid, values));
+                    return Uri.withAppendedPath(CONTENT_URI, uuid);
+                }
+            }
+        }
+
+        String uuid = popPooledId();
+        if (uuid == null) {
+            uuid = UUID.randomUUID().toString();
+            try {
+                getFile(uuid).createNewFile();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "File creation failed!");
+                return null;
+            }
+        }
         values.put(COLUMN_ID, uuid);
-        int insert = (int) db.getWritableDatabase().insert(TABLE_FILES, null, values);
-        if (insert == -1) {
-            Log.e(Constants.TAG, "Insert failed!");
-            return null;
+        FileEntry entry = new FileEntry(uuid, values.getAsString(COLUMN_NAME),
+                values.getAsString(COLUMN_TYPE), values.getAsLong(COLUMN_TIME));
+        if (Constants.TEMPSTORAGE_ENCRYPT) {
+            entry.mAead = StreamingAead.generate();
         }
-        try {
-            getFile(uuid).createNewFile();
-        } catch (IOException e) {
-            Log.e(Constants.TAG, "File creation failed!");
-            return null;
+        putEntry(entry);
+        synchronized (blobs) {
+            recordBytes(uuid, 0);
         }
+        enqueueWrite(new PendingWrite(PendingWrite.INSERT, uuid, values));
         return Uri.withAppendedPath(CONTENT_URI, uuid);
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        if (uri == null || uri.getLastPathSegment() == null) {
+        if (uri == null) {
             return 0;
         }
 
-        selection = DatabaseUtil.concatenateWhere(selection, COLUMN_ID + "=?");
-        selectionArgs = DatabaseUtil.appendSelectionArgs(selectionArgs, new String[]{uri.getLastPathSegment()});
+        // without an id, all files matching the selection are deleted
+        String id = uri.getLastPathSegment();
+        if (id != null) {
+            if (pipes.remove(id) != null) {
+                return 1;
+            }
 
-        Cursor files = db.getReadableDatabase().query(TABLE_FILES, new String[]{COLUMN_ID}, selection,
+            if (selection == null) {
+                // plain uri, nothing to evaluate by SQLite
+                FileEntry entry = removeEntry(id);
+                if (entry == null) {
+                    return 0;
+                }
+                File file = releaseFile(entry);
+                if (file != null) {
+                    file.delete();
+                }
+                enqueueWrite(new PendingWrite(PendingWrite.DELETE, id, null));
+                return 1;
+            }
+
+            selection = DatabaseUtil.concatenateWhere(selection, COLUMN_ID + "=?");
+            selectionArgs = DatabaseUtil.appendSelectionArgs(selectionArgs, new String[]{id});
+        }
+
+        // the selection may refer to rows that are not persisted yet
+        flushPendingWrites();
+        Cursor cursor = db.getReadableDatabase().query(TABLE_FILES, new String[]{COLUMN_ID}, selection,
                 selectionArgs, null, null, null);
-        if (files != null) {
-            while (files.moveToNext()) {
-                getFile(files.getString(0)).delete();
+        if (cursor != null) {
+            ArrayList<File> unused = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                FileEntry entry = removeEntry(cursor.getString(0));
+                File file = entry != null ? releaseFile(entry) : getFile(cursor.getString(0));
+                if (file != null) {
+                    unused.add(file);
+                }
             }
-            files.close();
+            cursor.close();
+            deleteFiles(unused);
             return db.getWritableDatabase().delete(TABLE_FILES, selection, selectionArgs);
         }
         return 0;
     }
 
+    /**
+     * Creates all files, their rows are persisted in a single transaction.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        beginBatch();
+        try {
+            int inserted = 0;
+            for (ContentValues value : values) {
+                if (insert(uri, value) != null) {
+                    inserted++;
+                }
+            }
+            return inserted;
+        } finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Applies all operations, their rows are persisted in a single transaction.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        beginBatch();
+        try {
+            return super.applyBatch(operations);
+        } finally {
+            endBatch();
+        }
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        if (values.size() != 1 || !values.containsKey(COLUMN_TYPE)) {
-            throw new UnsupportedOperationException("Update supported only for type field!");
+        for (String key : values.keySet()) {
+            if (!COLUMN_TYPE.equals(key) && !COLUMN_SIZE.equals(key)) {
+                throw new UnsupportedOperationException("Update supported only for type and size fields!");
+            }
         }
         if (selection != null || selectionArgs != null) {
             throw new UnsupportedOperationException("Update supported only for plain uri!");
         }
-        return db.getWritableDatabase().update(TABLE_FILES, values,
-                COLUMN_ID + " = ?", new String[]{uri.getLastPathSegment()});
+        String id = uri.getLastPathSegment();
+        FileEntry entry = files.get(id);
+        if (entry == null) {
+            return 0;
+        }
+        if (values.containsKey(COLUMN_TYPE)) {
+            entry.mMimeType = values.getAsString(COLUMN_TYPE);
+        }
+        if (values.containsKey(COLUMN_SIZE)) {
+            synchronized (blobs) {
+                recordSize(entry, values.getAsLong(COLUMN_SIZE));
+            }
+        }
+        enqueueWrite(new PendingWrite(PendingWrite.UPDATE, id, values));
+        return 1;
     }
 
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
         Log.d(Constants.TAG, "openFile");
-        return openFileHelper(uri, mode);
+        String id = uri.getLastPathSegment();
+        PipeEntry pipe = getPipe(id);
+        if (pipe != null) {
+            return openPipe(pipe, mode);
+        }
+
+        // resolved from the index, without openFileHelper's round trip through query()
+        final FileEntry entry = requireEntry(uri);
+        boolean truncate = "w".equals(mode) || "wt".equals(mode);
+        boolean hash = Constants.TEMPSTORAGE_DEDUPLICATE && truncate;
+        if (Constants.TEMPSTORAGE_ENCRYPT
+                || (hash && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)) {
+            // without close listener, the content can only be hashed while passing a pipe
+            return openPumped(entry, mode, 0, -1);
+        }
+        int modeBits = parseMode(mode);
+        if (modeBits == ParcelFileDescriptor.MODE_READ_ONLY) {
+            // the file may still be written or replaced by a shared one
+            awaitWrite(entry);
+            return ParcelFileDescriptor.open(getFile(entry), modeBits);
+        }
+
+        detachFile(entry, !truncate);
+        final File file = getFile(entry);
+        // size changes while being written
+        startWrite(entry);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            final CountDownLatch written = hash ? new CountDownLatch(1) : null;
+            if (written != null) {
+                entry.mWritten = written;
+            }
+            try {
+                return ParcelFileDescriptor.open(file, modeBits, getCloseHandler(),
+                        new ParcelFileDescriptor.OnCloseListener() {
+                            @Override
+                            public void onClose(IOException e) {
+                                if (written == null) {
+                                    updateSize(entry, file.length());
+                                    return;
+                                }
+                                // reads the whole file, not on the main thread
+                                pipePumps.execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        try {
+                                            commitFile(entry, file);
+                                        } finally {
+                                            written.countDown();
+                                        }
+                                    }
+                                });
+                            }
+                        });
+            } catch (IOException e) {
+                if (written != null) {
+                    written.countDown();
+                }
+                throw new FileNotFoundException(e.getMessage());
+            }
+        }
+        return ParcelFileDescriptor.open(file, modeBits);
+    }
+
+    /**
+     * Waits until a running write of the entry has been committed.
+     */
+    private static void awaitWrite(FileEntry entry) throws FileNotFoundException {
+        CountDownLatch written = entry.mWritten;
+        if (written == null) {
+            return;
+        }
+        try {
+            if (!written.await(WRITE_WAIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new FileNotFoundException(entry.mId + " is still being written!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileNotFoundException("Interrupted while waiting for write!");
+        }
+    }
+
+    /**
+     * Hashes a file written through a file descriptor and commits it like a pumped write.
+     */
+    private static void commitFile(FileEntry entry, File file) {
+        FileInputStream in = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[PUMP_BUFFER_SIZE];
+            long size = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+                size += count;
+            }
+            in.close();
+            in = null;
+            commitWrite(entry, size, toHex(digest.digest()));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.e(Constants.TAG, "Hashing file failed!", e);
+            updateSize(entry, file.length());
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Opens a part of a file if the uri has the query parameters {@link #PARAM_OFFSET} and/or
+     * {@link #PARAM_LENGTH}, so large files can be read in chunks without skipping through them.
+     */
+    @Override
+    public AssetFileDescriptor openAssetFile(Uri uri, String mode) throws FileNotFoundException {
+        String offsetParam = uri.getQueryParameter(PARAM_OFFSET);
+        String lengthParam = uri.getQueryParameter(PARAM_LENGTH);
+        if (offsetParam == null && lengthParam == null) {
+            return super.openAssetFile(uri, mode);
+        }
+        if (!"r".equals(mode) || getPipe(uri.getLastPathSegment()) != null) {
+            throw new FileNotFoundException("Only files can be read partially!");
+        }
+
+        long offset;
+        long length;
+        try {
+            offset = offsetParam != null ? Long.parseLong(offsetParam) : 0;
+            length = lengthParam != null ? Long.parseLong(lengthParam) : -1;
+        } catch (NumberFormatException e) {
+            throw new FileNotFoundException("Invalid offset or length!");
+        }
+        if (Constants.TEMPSTORAGE_ENCRYPT) {
+            if (offset < 0) {
+                throw new FileNotFoundException("Offset " + offset + " out of range!");
+            }
+            // decryption starts at the segment containing offset
+            return new AssetFileDescriptor(openPumped(requireEntry(uri), mode, offset, length),
+                    0, AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+        ParcelFileDescriptor fd = openFile(uri, mode);
+        long fileLength = getFile(requireEntry(uri)).length();
+        if (offset < 0 || offset > fileLength) {
+            try {
+                fd.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Closing file failed!", e);
+            }
+            throw new FileNotFoundException("Offset " + offset + " out of range!");
+        }
+        // an unknown length would make AssetFileDescriptor ignore the offset
+        if (length < 0 || length > fileLength - offset) {
+            length = fileLength - offset;
+        }
+        return new AssetFileDescriptor(fd, offset, length);
+    }
+
+    private static FileEntry requireEntry(Uri uri) throws FileNotFoundException {
+        String id = uri.getLastPathSegment();
+        FileEntry entry = id != null ? files.get(id) : null;
+        if (entry == null) {
+            throw new FileNotFoundException("No temporary file for " + uri);
+        }
+        return entry;
+    }
+
+    private static long getPlaintextLength(File file) {
+        return Constants.TEMPSTORAGE_ENCRYPT
+                ? StreamingAead.getPlaintextLength(file.length()) : file.length();
+    }
+
+    /**
+     * Returns a pipe decrypting the file for "r", writing into the file for "w" and "wt" while
+     * encrypting and/or hashing the content. Writers cannot seek in the pipe. Reads wait for a
+     * running write of the same file to finish.
+     *
+     * @param length number of bytes to read, -1 to read until the end
+     */
+    private static ParcelFileDescriptor openPumped(final FileEntry entry, String mode,
+                                                   final long offset, final long length)
+            throws FileNotFoundException {
+        boolean read = "r".equals(mode);
+        if (!read && !"w".equals(mode) && !"wt".equals(mode)) {
+            throw new FileNotFoundException("Mode " + mode + " is not supported for pumped files!");
+        }
+        if (!read) {
+            detachFile(entry, false);
+        }
+        final StreamingAead aead;
+        final File file;
+        synchronized (blobs) {
+            if (!read && Constants.TEMPSTORAGE_ENCRYPT) {
+                // segment nonces restart at 0, so content must never be written twice per key
+                entry.mAead = StreamingAead.generate();
+            }
+            // both change when the entry starts sharing a file
+            aead = entry.mAead;
+            file = getFile(entry);
+        }
+        if (Constants.TEMPSTORAGE_ENCRYPT && aead == null) {
+            throw new FileNotFoundException("Key of " + entry.mId + " is gone!");
+        }
+        final MessageDigest digest;
+        try {
+            digest = !read && Constants.TEMPSTORAGE_DEDUPLICATE
+                    ? MessageDigest.getInstance(HASH_ALGORITHM) : null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new FileNotFoundException(HASH_ALGORITHM + " is not available!");
+        }
+        final ParcelFileDescriptor[] fds;
+        try {
+            fds = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Pipe creation failed: " + e.getMessage());
+        }
+
+        if (read) {
+            final CountDownLatch written = entry.mWritten;
+            pipePumps.execute(new Runnable() {
+                @Override
+                public void run() {
+                    OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fds[1]);
+                    FileInputStream in = null;
+                    try {
+                        StreamingAead readAead = aead;
+                        File readFile = file;
+                        if (written != null) {
+                            written.await(WRITE_WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+                            synchronized (blobs) {
+                                // the write may have been committed to a shared file
+                                readAead = entry.mAead;
+                                readFile = getFile(entry);
+                            }
+                        }
+                        in = new FileInputStream(readFile);
+                        readAead.decrypt(in.getChannel(), offset, length, out);
+                    } catch (IOException e) {
+                        Log.e(Constants.TAG, "Decrypting file failed!", e);
+                    } catch (InterruptedException e) {
+                        Log.e(Constants.TAG, "Interrupted while waiting for write!", e);
+                    } finally {
+                        closeQuietly(in);
+                        closeQuietly(out);
+                    }
+                }
+            });
+            return fds[0];
+        }
+
+        final CountDownLatch written = new CountDownLatch(1);
+        entry.mWritten = written;
+        startWrite(entry);
+        pipePumps.execute(new Runnable() {
+            @Override
+            public void run() {
+                InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(fds[0]);
+                OutputStream out = null;
+                try {
+                    out = new FileOutputStream(file);
+                    if (aead != null) {
+                        out = aead.newEncryptingStream(out);
+                    }
+                    byte[] buffer = new byte[PUMP_BUFFER_SIZE];
+                    long size = 0;
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                        if (digest != null) {
+                            digest.update(buffer, 0, count);
+                        }
+                        size += count;
+                    }
+                    out.close();
+                    out = null;
+                    if (digest != null) {
+                        commitWrite(entry, size, toHex(digest.digest()));
+                    } else {
+                        updateSize(entry, size);
+                    }
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "Writing file failed!", e);
+                } finally {
+                    closeQuietly(out);
+                    closeQuietly(in);
+                    written.countDown();
+                }
+            }
+        });
+        return fds[1];
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Closing stream failed!", e);
+        }
+    }
+
+    private static int parseMode(String mode) {
+        if ("r".equals(mode)) {
+            return ParcelFileDescriptor.MODE_READ_ONLY;
+        } else if ("w".equals(mode) || "wt".equals(mode)) {
+            return ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                    | ParcelFileDescriptor.MODE_TRUNCATE;
+        } else if ("wa".equals(mode)) {
+            return ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                    | ParcelFileDescriptor.MODE_APPEND;
+        } else if ("rw".equals(mode)) {
+            return ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE;
+        } else if ("rwt".equals(mode)) {
+            return ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE
+                    | ParcelFileDescriptor.MODE_TRUNCATE;
+        }
+        throw new IllegalArgumentException("Invalid mode: " + mode);
+    }
+
+    private static synchronized Handler getCloseHandler() {
+        if (closeHandler == null) {
+            closeHandler = new Handler(Looper.getMainLooper());
+        }
+        return closeHandler;
+    }
+
+    private static void updateSize(FileEntry entry, long size) {
+        synchronized (blobs) {
+            if (!recordSize(entry, size)) {
+                // deleted meanwhile
+                return;
+            }
+        }
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_SIZE, size);
+        enqueueWrite(new PendingWrite(PendingWrite.UPDATE, entry.mId, values));
+    }
+
+    /**
+     * Records size and hash of written content. If the same content is already stored, the entry
+     * shares that file and its own copy is deleted.
+     */
+    private static void commitWrite(FileEntry entry, long size, String hash) {
+        File duplicate = null;
+        ContentValues values = new ContentValues();
+        synchronized (blobs) {
+            if (!recordSize(entry, size)) {
+                // deleted meanwhile
+                return;
+            }
+            values.put(COLUMN_SIZE, size);
+            Blob blob = blobs.get(hash);
+            if (blob == null) {
+                blobs.put(hash, new Blob(entry.mBlob, entry.mAead, size));
+            } else if (blob.mSize == size
+                    && (blob.mAead != null || !Constants.TEMPSTORAGE_ENCRYPT)) {
+                duplicate = getFile(entry);
+                // the shared file is counted already
+                forgetBytes(entry.mBlob);
+                entry.mBlob = blob.mName;
+                entry.mAead = blob.mAead;
+                blob.mRefs++;
+            } else {
+                // cannot be shared, e.g. written by a previous process without a key
+                hash = null;
+            }
+            if (hash != null) {
+                entry.mHash = hash;
+                values.put(COLUMN_HASH, hash);
+                values.put(COLUMN_BLOB, entry.mBlob);
+            }
+        }
+        if (duplicate != null) {
+            duplicate.delete();
+        }
+        enqueueWrite(new PendingWrite(PendingWrite.UPDATE, entry.mId, values));
+    }
+
+    /**
+     * Makes sure an entry does not modify content shared with other entries, by giving it a file
+     * of its own.
+     *
+     * @param keepContent copy the shared content, for modes not truncating the file
+     */
+    private static void detachFile(FileEntry entry, boolean keepContent)
+            throws FileNotFoundException {
+        File shared = null;
+        synchronized (blobs) {
+            if (entry.mHash == null) {
+                return;
+            }
+            Blob blob = blobs.get(entry.mHash);
+            if (blob != null && blob.mRefs > 1) {
+                blob.mRefs--;
+                shared = getFile(entry);
+                // the shared name stays in use by the other entries
+                entry.mBlob = UUID.randomUUID().toString();
+                recordBytes(entry.mBlob, keepContent ? blob.mSize : 0);
+                if (Constants.TEMPSTORAGE_ENCRYPT) {
+                    entry.mAead = StreamingAead.generate();
+                }
+            } else {
+                blobs.remove(entry.mHash);
+            }
+            entry.mHash = null;
+        }
+        if (shared != null && keepContent) {
+            copyFile(shared, getFile(entry));
+        }
+        ContentValues values = new ContentValues();
+        values.putNull(COLUMN_HASH);
+        values.put(COLUMN_BLOB, entry.mBlob);
+        enqueueWrite(new PendingWrite(PendingWrite.UPDATE, entry.mId, values));
+    }
+
+    private static void copyFile(File from, File to) throws FileNotFoundException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(from);
+            out = new FileOutputStream(to);
+            FileChannel channel = in.getChannel();
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                position += channel.transferTo(position, size - position, out.getChannel());
+            }
+        } catch (IOException e) {
+            throw new FileNotFoundException("Copying shared file failed: " + e.getMessage());
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    private ParcelFileDescriptor openPipe(final PipeEntry pipe, String mode)
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("In-memory entries can only be read!");
+        }
+        final ParcelFileDescriptor[] fds;
+        try {
+            fds = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Pipe creation failed: " + e.getMessage());
+        }
+
+        pipePumps.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fds[1]);
+                try {
+                    pipe.mWriter.writeTo(out);
+                } catch (IOException e) {
+                    // also happens if the reader closes its end early
+                    Log.e(Constants.TAG, "Writing pipe failed!", e);
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        Log.e(Constants.TAG, "Closing pipe failed!", e);
+                    }
+                }
+            }
+        });
+        return fds[0];
     }
 
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArmorReflowTest {
+
+    private static final String HEADER = "-----BEGIN PGP MESSAGE-----";
+    private static final String FOOTER = "-----END PGP MESSAGE-----";
+    // public-key encrypted
+    private static final String[] LINES = {
+            "hF4D5le4Cr8HX0ISAQdAHL8C83yLkIqkifyasWUDtpaariNVEV93Tp4k6MDKSj4w",
+            "9sE6+SYYswzvE1Cqo2dQHj+NnAhvm3f0WdS+baQi6rnxu35oo9g1hGmt1/Gk/wWU",
+            "0kwBDom1DhnCecBjZquVOxiPvV/BVQGZGlF0VJTRkBjtEktzLTxSZDOvxUfsBabv",
+            "8J2KSdNheSEmLw8/McU/6ZcuLMezcR9gpi9Vw/9s"
+    };
+    private static final String CHECKSUM = "=rfYP";
+    private static final String REFLOWED = HEADER + "\n\n" + LINES[0] + "\n" + LINES[1] + "\n"
+            + LINES[2] + "\n" + LINES[3] + "\n" + CHECKSUM + "\n" + FOOTER + "\n";
+
+    @Test
+    public void reflowsJoinedLines() throws Exception {
+        ArmorReflow armor = parse("Hi, " + HEADER + join("") + CHECKSUM + FOOTER + " bye");
+        assertEquals(REFLOWED, armor.toString());
+        assertEquals(ArmorValidator.Result.VALID, ArmorValidator.validate(armor));
+    }
+
+    @Test
+    public void reflowsSpaceSeparatedLines() throws Exception {
+        ArmorReflow armor = parse(HEADER + " " + join(" ") + " " + CHECKSUM + " " + FOOTER);
+        assertEquals(REFLOWED, armor.toString());
+        assertEquals(ArmorValidator.Result.VALID, ArmorValidator.validate(armor));
+    }
+
+    @Test
+    public void findsDataGluedToHeaderWithChecksum() throws Exception {
+        ArmorReflow armor = parse(HEADER + "Comment: GPGTools - https://gpgtools.org"
+                + join("") + CHECKSUM + FOOTER);
+        assertEquals(ArmorValidator.Result.VALID, ArmorValidator.validate(armor));
+        assertFalse(armor.isBodyAmbiguous());
+        assertTrue(armor.toString().contains("\n\n" + LINES[0] + "\n"));
+    }
+
+    @Test
+    public void findsDataBehindWhitespaceWithoutChecksum() throws Exception {
+        ArmorReflow armor = parse(HEADER + "Comment: https://keybase.io/crypto " + join(" ")
+                + " " + FOOTER);
+        assertEquals(ArmorValidator.Result.VALID, ArmorValidator.validate(armor));
+        assertTrue(armor.toString().contains("\n\n" + LINES[0] + "\n"));
+    }
+
+    @Test
+    public void dataGluedToHeaderWithoutChecksumIsAmbiguous() throws Exception {
+        ArmorReflow armor = parse(HEADER + "Comment: https://keybase.io/crypto" + join("")
+                + FOOTER);
+        assertTrue(armor.isBodyAmbiguous());
+        assertEquals(ArmorValidator.Result.CORRUPTED, ArmorValidator.validate(armor));
+    }
+
+    @Test
+    public void streamMatchesString() throws Exception {
+        ArmorReflow armor = parse(HEADER + join("") + CHECKSUM + FOOTER);
+        StringBuilder streamed = new StringBuilder();
+        InputStream in = armor.newInputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            streamed.append((char) c);
+        }
+        assertEquals(armor.toString(), streamed.toString());
+        assertTrue(streamed.length() <= armor.getMaxLength());
+    }
+
+    @Test
+    public void missingFooterIsTruncated() throws Exception {
+        ArmorReflow armor = parse(HEADER + LINES[0] + LINES[1] + "...");
+        assertTrue(armor.isTruncated());
+    }
+
+    @Test(expected = IOException.class)
+    public void missingHeaderFails() throws Exception {
+        ArmorReflow.parse(join(""), ArmorType.MESSAGE, 0);
+    }
+
+    private static ArmorReflow parse(String content) throws IOException {
+        return ArmorReflow.parse(content, ArmorType.MESSAGE, content.indexOf(HEADER));
+    }
+
+    private static String join(String separator) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < LINES.length; i++) {
+            if (i > 0) {
+                builder.append(separator);
+            }
+            builder.append(LINES[i]);
+        }
+        return builder.toString();
+    }
+}
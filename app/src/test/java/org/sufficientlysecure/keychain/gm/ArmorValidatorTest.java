@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.gm;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ArmorValidatorTest {
+
+    private static final String HEADER = "-----BEGIN PGP MESSAGE-----";
+    private static final String FOOTER = "-----END PGP MESSAGE-----";
+    // symmetrically encrypted, lines joined by the content description
+    private static final String BODY =
+            "jA0ECQMCB9b4UDAT72L/0kYB5dy0+ckLyBjfwkgUzPmX+TeIEyDMJ8vKflngYT23"
+            + "3nRhIdA1XZMAGxvibsGRvLIBvNiBwn+kA9oO6h5JIvA00D1jA6lN";
+    private static final String CHECKSUM = "=RdZK";
+
+    @Test
+    public void crc24MatchesOpenPgpCheckValue() {
+        byte[] data = "123456789".getBytes(Charset.forName("US-ASCII"));
+        assertEquals(0x21CF02, ArmorValidator.crc24(data));
+    }
+
+    @Test
+    public void crc24OfNothingIsInitialValue() {
+        assertEquals(0xB704CE, ArmorValidator.crc24(new byte[0]));
+    }
+
+    @Test
+    public void validArmor() throws Exception {
+        assertEquals(ArmorValidator.Result.VALID, validate(HEADER + BODY + CHECKSUM + FOOTER));
+    }
+
+    @Test
+    public void validArmorWithoutChecksum() throws Exception {
+        assertEquals(ArmorValidator.Result.VALID, validate(HEADER + BODY + FOOTER));
+    }
+
+    @Test
+    public void missingFooterIsTruncated() throws Exception {
+        assertEquals(ArmorValidator.Result.TRUNCATED,
+                validate(HEADER + BODY.substring(0, 40) + "..."));
+    }
+
+    @Test
+    public void wrongChecksumIsCorrupted() throws Exception {
+        assertEquals(ArmorValidator.Result.CORRUPTED, validate(HEADER + BODY + "=RdZL" + FOOTER));
+    }
+
+    @Test
+    public void changedDataIsCorrupted() throws Exception {
+        String body = BODY.substring(0, 30) + "A" + BODY.substring(31);
+        assertEquals(ArmorValidator.Result.CORRUPTED, validate(HEADER + body + CHECKSUM + FOOTER));
+    }
+
+    @Test
+    public void missingDataWithoutChecksumIsCorrupted() throws Exception {
+        // the packets end early
+        String body = BODY.substring(0, BODY.length() - 8);
+        assertEquals(ArmorValidator.Result.CORRUPTED, validate(HEADER + body + FOOTER));
+    }
+
+    @Test(timeout = 5000)
+    public void randomDataIsCorruptedInLinearTime() throws Exception {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        Random random = new Random(0);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 512 * 1024; i++) {
+            body.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        assertEquals(ArmorValidator.Result.CORRUPTED,
+                validate(HEADER + "Comment: x" + body + CHECKSUM + FOOTER));
+        assertEquals(ArmorValidator.Result.CORRUPTED,
+                validate(HEADER + "Comment: x" + body + FOOTER));
+    }
+
+    private static ArmorValidator.Result validate(String content) throws Exception {
+        return ArmorValidator.validate(ArmorReflow.parse(content, ArmorType.MESSAGE, 0));
+    }
+}